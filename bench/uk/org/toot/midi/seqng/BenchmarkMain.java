@@ -0,0 +1,39 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler so that allocation rates,
+ * gc.alloc.rate.norm in bytes per operation, are reported with the scores.
+ * The real-time paths, pump with a PackedMidiSource, notesOff and
+ * checkQuarterFrame, are expected to allocate nothing per operation.
+ * 
+ * The benchmarks require JMH, jmh-core and jmh-generator-annprocess, the
+ * toot MIDI library and the sources of this package on the classpath.
+ * An optional argument is a regular expression which selects benchmarks,
+ * e.g. Pump.
+ * @author st
+ *
+ */
+public class BenchmarkMain
+{
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(args.length > 0 ? args[0] : "uk.org.toot.midi.seqng.*Benchmark")
+			.addProfiler(GCProfiler.class)
+			.forks(1)
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,94 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.org.toot.midi.message.MTC;
+
+/**
+ * Benchmarks MTCMidiPlayer.checkQuarterFrame(), i.e. quarter frame generation,
+ * which is called on every pump while MTC is enabled.
+ * Each operation advances time by one millisecond so a quarter frame is
+ * generated on most operations.
+ * @author st
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MTCBenchmark
+{
+	@Param({"FPS_24", "FPS_25", "FPS_30DF", "FPS_30"})
+	public String rate;
+
+	private MTCMidiPlayer player;
+	private long millis;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		player = new MTCMidiPlayer();
+		player.setMidiSource(new BenchmarkSource());
+		player.setMTCFrameRate(MTC.FrameRate.valueOf(rate));
+		player.setMTCEnabled(true);
+	}
+
+	@Benchmark
+	public void checkQuarterFrame(Blackhole bh) {
+		BenchmarkSource.blackhole = bh;
+		player.checkQuarterFrame(1000000L * millis++);
+	}
+
+	/**
+	 * A MidiTarget with a single empty EventSource which consumes MidiMessages.
+	 */
+	static class BenchmarkSource extends MidiTarget
+	{
+		static Blackhole blackhole;
+
+		private List<EventSource> eventSources = Collections.<EventSource>singletonList(
+			new NotesOffBenchmark.BenchmarkTarget() {
+				@Override
+				public void transportImpl(MidiMessage msg) {
+					if ( blackhole != null ) blackhole.consume(msg);
+				}
+			});
+
+		@Override
+		public List<EventSource> getEventSources() {
+			return eventSources;
+		}
+
+		@Override
+		public String getName() {
+			return "benchmark";
+		}
+
+		@Override
+		public int getResolution() {
+			return SyntheticSequences.RESOLUTION;
+		}
+
+		@Override
+		public void returnToZero() {
+		}
+	}
+}
@@ -0,0 +1,87 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks AbstractMessageTarget.notesOff() with a number of active notes
+ * spread over a number of channels. Each operation turns the notes on, which
+ * is included in the score, and then turns them off.
+ * @author st
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotesOffBenchmark
+{
+	@Param({"0", "8", "128"})
+	public int notes;
+
+	@Param({"1", "16"})
+	public int channels;
+
+	@Param({"false", "true"})
+	public boolean doControllers;
+
+	private BenchmarkTarget target;
+	private ShortMessage[] noteOns;
+
+	@Setup(Level.Trial)
+	public void setup() throws InvalidMidiDataException {
+		target = new BenchmarkTarget();
+		noteOns = new ShortMessage[notes];
+		for ( int i = 0; i < notes; i++ ) {
+			noteOns[i] = new ShortMessage();
+			noteOns[i].setMessage(ShortMessage.NOTE_ON, i % channels, (i * 7) % 128, 100);
+		}
+	}
+
+	@Benchmark
+	public void notesOff(Blackhole bh) {
+		target.blackhole = bh;
+		for ( int i = 0; i < noteOns.length; i++ ) {
+			target.transport(noteOns[i]);
+		}
+		target.notesOff(doControllers);
+	}
+
+	/**
+	 * An AbstractMessageTarget which consumes MidiMessages.
+	 */
+	static class BenchmarkTarget extends MidiTarget.AbstractMessageTarget
+	{
+		Blackhole blackhole;
+
+		@Override
+		public void transportImpl(MidiMessage msg) {
+			blackhole.consume(msg);
+		}
+
+		public MidiEvent peek() { return null; }
+
+		public MidiEvent next() { return null; }
+
+		public String getName() { return "benchmark"; }
+	}
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks MidiRenderer.pump() by pumping a whole MidiSource in steps of
+ * approximately a millisecond, as the real-time thread would.
+ * The score is the time to pump every event once.
+ * @author st
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PumpBenchmark
+{
+	@Param({"1", "16", "128"})
+	public int tracks;
+
+	@Param({"2000"})
+	public int events;
+
+	@Param({"4", "64"})
+	public int density;
+
+	@Param({"0", "100"})
+	public int tempos;
+
+	@Param({"sequence", "packed"})
+	public String source;
+
+	@Param({"false", "true"})
+	public boolean merging;
+
+	private BenchmarkRenderer renderer;
+	private long endTick;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Sequence sequence = SyntheticSequences.create(tracks, events, density, tempos);
+		MidiSource src = "packed".equals(source) ?
+			new PackedMidiSource(sequence) : new SequenceMidiSource(sequence);
+		renderer = new BenchmarkRenderer();
+		renderer.setMerging(merging);
+		renderer.setMidiSource(src);
+		endTick = sequence.getTickLength();
+	}
+
+	@Benchmark
+	public void pump(Blackhole bh) {
+		renderer.blackhole = bh;
+		renderer.returnToZero();
+		// about 1 millisecond per pump at 120 bpm
+		long step = SyntheticSequences.RESOLUTION / 500 + 1;
+		for ( long tick = 0; tick <= endTick + step; tick += step ) {
+			renderer.pump(tick);
+		}
+	}
+
+	/**
+	 * A MidiRenderer which consumes MidiMessages.
+	 */
+	static class BenchmarkRenderer extends MidiRenderer
+	{
+		Blackhole blackhole;
+
+		void returnToZero() {
+			source.returnToZero();
+			eventSourcesChanged();
+		}
+
+		@Override
+		protected List<MidiSource.EventSource> eventSources() {
+			return source.getEventSources();
+		}
+
+		@Override
+		protected void transport(MidiMessage msg, MidiSource.EventSource src, int i) {
+			blackhole.consume(msg);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks SequenceMidiRenderer.render() of a whole MidiSource.
+ * @author st
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RenderBenchmark
+{
+	@Param({"1", "16", "128"})
+	public int tracks;
+
+	@Param({"2000", "20000"})
+	public int events;
+
+	@Param({"16"})
+	public int density;
+
+	@Param({"0", "100"})
+	public int tempos;
+
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	private MidiSource source;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Sequence sequence = SyntheticSequences.create(tracks, events, density, tempos);
+		source = new PackedMidiSource(sequence);
+	}
+
+	@Benchmark
+	public Sequence render() throws InvalidMidiDataException {
+		SequenceMidiRenderer renderer = new SequenceMidiRenderer();
+		renderer.setParallel(parallel);
+		renderer.setMidiSource(source); // returns it to zero
+		return renderer.render();
+	}
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.Random;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Deterministic synthetic Sequences for benchmarks.
+ * @author st
+ *
+ */
+public class SyntheticSequences
+{
+	public static final int RESOLUTION = 480;
+
+	/**
+	 * Create a Sequence of paired note ons and offs.
+	 * @param tracks the number of tracks
+	 * @param events the number of events per track
+	 * @param density the mean number of events per quarter note
+	 * @param tempos the number of Tempo events in the first track
+	 * @return the Sequence
+	 */
+	public static Sequence create(int tracks, int events, int density, int tempos) {
+		try {
+			Random random = new Random(tracks * 31L + events * 17L + density * 7L + tempos);
+			Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+			int meanDelta = Math.max(1, 2 * RESOLUTION / density);
+			long tick = 0;
+			for ( int t = 0; t < tracks; t++ ) {
+				Track track = sequence.createTrack();
+				int ch = t % 16;
+				tick = 0;
+				for ( int e = 0; e < events / 2; e++ ) {
+					int note = 36 + random.nextInt(60);
+					tick += random.nextInt(meanDelta);
+					track.add(new MidiEvent(shortMessage(ShortMessage.NOTE_ON, ch, note, 100), tick));
+					track.add(new MidiEvent(shortMessage(ShortMessage.NOTE_OFF, ch, note, 0),
+								tick + 1 + random.nextInt(RESOLUTION)));
+				}
+			}
+			if ( tracks > 0 && tempos > 0 ) {
+				Track track = sequence.getTracks()[0];
+				for ( int i = 0; i < tempos; i++ ) {
+					int mpq = 400000 + random.nextInt(300000);
+					MetaMessage tempo = new MetaMessage();
+					tempo.setMessage(0x51, new byte[] { (byte)(mpq >> 16), (byte)(mpq >> 8), (byte)mpq }, 3);
+					track.add(new MidiEvent(tempo, tick * i / tempos));
+				}
+			}
+			return sequence;
+		} catch ( InvalidMidiDataException imde ) {
+			throw new IllegalStateException(imde);
+		}
+	}
+
+	private static ShortMessage shortMessage(int command, int ch, int data1, int data2)
+		throws InvalidMidiDataException {
+		ShortMessage msg = new ShortMessage();
+		msg.setMessage(command, ch, data1, data2);
+		return msg;
+	}
+}
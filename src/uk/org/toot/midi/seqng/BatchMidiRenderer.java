@@ -0,0 +1,319 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.Sequence;
+
+/**
+ * A BatchMidiRenderer renders many MidiSources to Sequences concurrently,
+ * each by a SequenceMidiRenderer, for bulk conversion.
+ *
+ * MidiSources are rendered on a fixed number of threads, by default one per
+ * processor, and at most maxPending MidiSources are accepted but not yet
+ * rendered, so submit() blocks when the threads fall behind. Since a Sequence
+ * is passed to the Handler as soon as it is rendered and not retained, the
+ * heap used is bounded by maxPending rather than by the number of MidiSources.
+ *
+ * Each thread reuses its own merging SequenceMidiRenderer, and hence its
+ * heap of EventSources, for every MidiSource it renders. The renderer releases
+ * each MidiSource and Sequence when it has been rendered, so idle threads
+ * don't keep them reachable.
+ *
+ * Per MidiSource timing is passed to the Handler and aggregate throughput is
+ * available from getStats(). If Handler.rendered() throws, Handler.failed() is
+ * called and the MidiSource counts as failed. Each failure, of rendering or of
+ * the Handler, is also propagated by the Future returned by submit().
+ * @author st
+ *
+ */
+public class BatchMidiRenderer
+{
+	private ExecutorService executor;
+	private Semaphore permits;
+	private int maxPending;
+
+	private ThreadLocal<SequenceMidiRenderer> renderers =
+		new ThreadLocal<SequenceMidiRenderer>() {
+			protected SequenceMidiRenderer initialValue() {
+				SequenceMidiRenderer renderer = new SequenceMidiRenderer();
+				renderer.setMerging(true);
+				return renderer;
+			}
+		};
+
+	private AtomicInteger rendered = new AtomicInteger();
+	private AtomicInteger failed = new AtomicInteger();
+	private AtomicLong renderNanos = new AtomicLong();	// sum over MidiSources
+	private volatile long startNanos = -1L;				// of the first submit()
+	private AtomicLong finishNanos = new AtomicLong();	// of the latest completion
+
+	/**
+	 * Render on one thread per processor with up to twice as many pending.
+	 */
+	public BatchMidiRenderer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param nthreads the number of threads, up to twice as many pending
+	 */
+	public BatchMidiRenderer(int nthreads) {
+		this(nthreads, nthreads * 2);
+	}
+
+	/**
+	 * @param nthreads the number of threads
+	 * @param maxPending the maximum number of MidiSources submitted but not rendered
+	 */
+	public BatchMidiRenderer(int nthreads, int maxPending) {
+		if ( nthreads <= 0 ) {
+			throw new IllegalArgumentException("nthreads must be positive");
+		}
+		if ( maxPending < nthreads ) {
+			throw new IllegalArgumentException("maxPending must be at least nthreads");
+		}
+		this.maxPending = maxPending;
+		permits = new Semaphore(maxPending);
+		executor = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+			private int count = 0;
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Toot BatchMidiRenderer "+(++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Submit a MidiSource to be rendered, blocking while maxPending MidiSources
+	 * are already pending. The MidiSource must not be shared with other
+	 * renderers while it is pending.
+	 * @param source the MidiSource
+	 * @param handler the Handler of the rendered Sequence
+	 * @return a Future of the rendered Sequence, which fails if rendering or the
+	 * Handler failed
+	 * @throws InterruptedException if interrupted while blocked
+	 */
+	public Future<Sequence> submit(final MidiSource source, final Handler handler)
+		throws InterruptedException {
+		if ( source == null ) {
+			throw new IllegalArgumentException("MidiSource can't be null");
+		}
+		if ( handler == null ) {
+			throw new IllegalArgumentException("Handler can't be null");
+		}
+		permits.acquire();
+		if ( startNanos < 0 ) {
+			synchronized ( this ) {
+				if ( startNanos < 0 ) startNanos = System.nanoTime();
+			}
+		}
+		try {
+			return executor.submit(new Callable<Sequence>() {
+				public Sequence call() throws Exception {
+					try {
+						return render(source, handler);
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch ( RuntimeException re ) { // rejected after shutdown()
+			permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Submit each MidiSource in turn, as for submit(), then await completion.
+	 * The Iterator is consumed lazily so MidiSources may be created on demand.
+	 * @param sources the Iterator of MidiSources, e.g. from a Stream
+	 * @param handler the Handler of each rendered Sequence
+	 * @return the Stats on completion
+	 * @throws InterruptedException if interrupted while blocked
+	 */
+	public Stats renderAll(Iterator<? extends MidiSource> sources, Handler handler)
+		throws InterruptedException {
+		while ( sources.hasNext() ) {
+			submit(sources.next(), handler);
+		}
+		await();
+		return getStats();
+	}
+
+	/**
+	 * Block until every submitted MidiSource has been rendered.
+	 * @throws InterruptedException if interrupted while blocked
+	 */
+	public void await() throws InterruptedException {
+		permits.acquire(maxPending);
+		permits.release(maxPending);
+	}
+
+	/**
+	 * Stop the threads once all submitted MidiSources have been rendered.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the Stats so far
+	 */
+	public Stats getStats() {
+		long start = startNanos;
+		long elapsed = start < 0 ? 0L : finishNanos.get() - start;
+		return new Stats(rendered.get(), failed.get(), renderNanos.get(), Math.max(0L, elapsed));
+	}
+
+	/**
+	 * Reset the Stats, which should only be called when nothing is pending.
+	 */
+	public synchronized void resetStats() {
+		rendered.set(0);
+		failed.set(0);
+		renderNanos.set(0L);
+		finishNanos.set(0L);
+		startNanos = -1L;
+	}
+
+	/**
+	 * Render a MidiSource on the calling thread and pass the result to the
+	 * Handler.
+	 * @param source the MidiSource
+	 * @param handler the Handler
+	 * @return the rendered Sequence
+	 * @throws Exception if rendering or the Handler failed
+	 */
+	protected Sequence render(MidiSource source, Handler handler) throws Exception {
+		SequenceMidiRenderer renderer = renderers.get();
+		long start = System.nanoTime();
+		Sequence sequence = null;
+		Exception failure = null;
+		try {
+			renderer.setMidiSource(source);
+			sequence = renderer.render();
+		} catch ( Exception e ) {
+			failure = e;
+		} finally {
+			renderer.release();
+		}
+		long finish = System.nanoTime();
+		renderNanos.addAndGet(finish - start);
+		long latest;
+		do {
+			latest = finishNanos.get();
+		} while ( finish - latest > 0 && !finishNanos.compareAndSet(latest, finish) );
+		if ( failure == null ) {
+			try {
+				handler.rendered(source, sequence, finish - start);
+				rendered.incrementAndGet();
+				return sequence;
+			} catch ( RuntimeException re ) {
+				failure = re;
+			}
+		}
+		failed.incrementAndGet();
+		handler.failed(source, failure); // may throw, also propagated
+		throw failure;
+	}
+
+	/**
+	 * A Handler receives each rendered Sequence, on the rendering thread.
+	 * @author st
+	 */
+	public interface Handler
+	{
+		/**
+		 * @param source the MidiSource
+		 * @param sequence the rendered Sequence
+		 * @param nanos the time taken to render in nanoseconds
+		 */
+		public void rendered(MidiSource source, Sequence sequence, long nanos);
+
+		/**
+		 * @param source the MidiSource
+		 * @param e the Exception which prevented rendering, or which rendered() threw
+		 */
+		public void failed(MidiSource source, Exception e);
+	}
+
+	/**
+	 * Stats are an immutable summary of rendering so far.
+	 * @author st
+	 */
+	public static class Stats
+	{
+		private int rendered, failed;
+		private long renderNanos, elapsedNanos;
+
+		public Stats(int rendered, int failed, long renderNanos, long elapsedNanos) {
+			this.rendered = rendered;
+			this.failed = failed;
+			this.renderNanos = renderNanos;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return the number of MidiSources rendered
+		 */
+		public int getRenderedCount() { return rendered; }
+
+		/**
+		 * @return the number of MidiSources which failed to render
+		 */
+		public int getFailedCount() { return failed; }
+
+		/**
+		 * @return the sum of the render times of all MidiSources in nanoseconds
+		 */
+		public long getRenderNanos() { return renderNanos; }
+
+		/**
+		 * @return the wall time from the first submit to the latest completion in nanoseconds
+		 */
+		public long getElapsedNanos() { return elapsedNanos; }
+
+		/**
+		 * @return the MidiSources rendered or failed per second of wall time
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : (rendered + failed) * 1000000000.0 / elapsedNanos;
+		}
+
+		/**
+		 * @return the mean render time in nanoseconds
+		 */
+		public long getMeanRenderNanos() {
+			int n = rendered + failed;
+			return n == 0 ? 0L : renderNanos / n;
+		}
+
+		/**
+		 * @return the average number of MidiSources being rendered concurrently
+		 */
+		public double getConcurrency() {
+			return elapsedNanos == 0 ? 0 : (double)renderNanos / elapsedNanos;
+		}
+
+		public String toString() {
+			return rendered+" rendered, "+failed+" failed, "+
+				String.format("%.1f", getThroughput())+"/s, mean "+
+				getMeanRenderNanos()/1000+"us, concurrency "+
+				String.format("%.2f", getConcurrency());
+		}
+	}
+}
@@ -0,0 +1,488 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A ChaseIndex supports controller chasing, i.e. restoring the program, bank,
+ * controllers, pitch bend, channel pressure and RPN/NRPN state of every channel
+ * of every EventSource when repositioning, as if the MidiSource had been played
+ * from the start.
+ *
+ * The state of each EventSource is checkpointed every interval ticks, but a
+ * checkpoint is only stored if the state has changed since the previous one.
+ * The state at a tick is found by binary search for the checkpoint at or before
+ * the preceding interval boundary and then by applying the events from that
+ * boundary, which are iterated anyway to position the EventSource. So chasing
+ * is O(log n + e) for n checkpoints and e events since the boundary.
+ *
+ * Only the difference between the chased state and the state already sent is
+ * sent, so chasing typically sends very few messages.
+ *
+ * A ChaseIndex is immutable and is precomputed from a MidiSource by scan(),
+ * so it is not updated if the MidiSource is subsequently edited.
+ * @author st
+ *
+ */
+public class ChaseIndex
+{
+	private long interval;
+
+	private long[][] ticks;		// checkpoint ticks per EventSource
+	private State[][] states;	// checkpoint states per EventSource
+	private int[] sizes;		// number of checkpoints per EventSource
+
+	private ChaseIndex(long interval, int nsources) {
+		this.interval = interval;
+		ticks = new long[nsources][];
+		states = new State[nsources][];
+		sizes = new int[nsources];
+	}
+
+	/**
+	 * Precompute a ChaseIndex from every EventSource of a MidiSource.
+	 * The MidiSource is returned to zero before and after scanning so this
+	 * must not be called while the MidiSource is being played, and every
+	 * EventSource must terminate.
+	 * @param source the MidiSource to scan
+	 * @param interval the number of ticks between checkpoints, e.g. a bar
+	 * @return the ChaseIndex
+	 */
+	public static ChaseIndex scan(MidiSource source, long interval) {
+		if ( interval <= 0 ) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		source.returnToZero();
+		List<MidiSource.EventSource> eventSources = source.getEventSources();
+		ChaseIndex index = new ChaseIndex(interval, eventSources.size());
+		int i = 0;
+		for ( MidiSource.EventSource src : eventSources ) {
+			index.scan(i++, src);
+		}
+		source.returnToZero();
+		return index;
+	}
+
+	private void scan(int i, MidiSource.EventSource src) {
+		long[] cpTicks = new long[8];
+		State[] cpStates = new State[8];
+		int n = 0;
+		State state = new State();
+		boolean changed = false;
+		long boundary = interval;
+		MidiEvent evt;
+		while ( true ) {
+			evt = src.next();
+			// checkpoint at the boundary after any change, including the last
+			if ( evt == null || evt.getTick() >= boundary ) {
+				if ( changed ) {
+					if ( n == cpTicks.length ) {
+						long[] t = new long[n * 2];
+						System.arraycopy(cpTicks, 0, t, 0, n);
+						cpTicks = t;
+						State[] s = new State[n * 2];
+						System.arraycopy(cpStates, 0, s, 0, n);
+						cpStates = s;
+					}
+					cpTicks[n] = boundary;
+					cpStates[n] = new State();
+					cpStates[n].copy(state);
+					n += 1;
+					changed = false;
+				}
+				if ( evt == null ) break;
+				boundary = (evt.getTick() / interval + 1) * interval;
+			}
+			if ( state.apply(evt.getMessage()) ) {
+				changed = true;
+			}
+		}
+		ticks[i] = cpTicks;
+		states[i] = cpStates;
+		sizes[i] = n;
+	}
+
+	/**
+	 * @return the number of ticks between checkpoints
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return the number of EventSources indexed
+	 */
+	public int size() {
+		return sizes.length;
+	}
+
+	/**
+	 * Return the interval boundary at or before a tick, from which events must
+	 * be applied to the state returned by getState() to chase to the tick.
+	 * @param tick the tick being chased
+	 * @return the boundary tick
+	 */
+	public long getBoundary(long tick) {
+		return tick - tick % interval;
+	}
+
+	/**
+	 * Get the state of an EventSource as at a boundary, i.e. after all events
+	 * before the boundary.
+	 * Does not allocate unless into has too little RPN/NRPN capacity.
+	 * @param i the index of the EventSource
+	 * @param boundary the boundary tick, from getBoundary()
+	 * @param into the State to set
+	 */
+	public void getState(int i, long boundary, State into) {
+		if ( i >= sizes.length ) {
+			into.clear();
+			return;
+		}
+		long[] cpTicks = ticks[i];
+		// binary search for the last checkpoint at or before boundary
+		int lo = 0;
+		int hi = sizes[i];
+		int mid;
+		while ( lo < hi ) {
+			mid = (lo + hi) >>> 1;
+			if ( cpTicks[mid] <= boundary ) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		if ( lo == 0 ) {
+			into.clear();
+		} else {
+			into.copy(states[i][lo - 1]);
+		}
+	}
+
+	/**
+	 * A Sender sends the MidiMessages which chase a State.
+	 */
+	public interface Sender
+	{
+		public void send(int command, int channel, int data1, int data2);
+	}
+
+	/**
+	 * The chaseable state of the 16 channels of an EventSource.
+	 * Values are -1 until they are known.
+	 * @author st
+	 */
+	public static class State
+	{
+		private static final int PROGRAM = 128;
+		private static final int BEND = 129;
+		private static final int PRESSURE = 130;
+		private static final int SLOTS = 131;
+
+		private static final int RPN = 1;
+		private static final int NRPN = 2;
+
+		private short[] values = new short[16 * SLOTS];
+		private byte[] selected = new byte[16];	// RPN, NRPN or 0
+		private int usedChannels;
+
+		// RPN and NRPN values, keyed by channel << 16 | type << 14 | parameter
+		private int[] paramKeys = new int[8];
+		private short[] paramMsbs = new short[8];
+		private short[] paramLsbs = new short[8];
+		private int nparams;
+
+		public State() {
+			clear();
+		}
+
+		/**
+		 * Forget everything.
+		 */
+		public void clear() {
+			for ( int i = 0; i < values.length; i++ ) {
+				values[i] = -1;
+			}
+			for ( int ch = 0; ch < 16; ch++ ) {
+				selected[ch] = 0;
+			}
+			usedChannels = 0;
+			nparams = 0;
+		}
+
+		/**
+		 * Set this State to be the same as another.
+		 * @param state the State to copy
+		 */
+		public void copy(State state) {
+			System.arraycopy(state.values, 0, values, 0, values.length);
+			System.arraycopy(state.selected, 0, selected, 0, selected.length);
+			usedChannels = state.usedChannels;
+			if ( paramKeys.length < state.nparams ) {
+				paramKeys = new int[state.paramKeys.length];
+				paramMsbs = new short[state.paramKeys.length];
+				paramLsbs = new short[state.paramKeys.length];
+			}
+			nparams = state.nparams;
+			System.arraycopy(state.paramKeys, 0, paramKeys, 0, nparams);
+			System.arraycopy(state.paramMsbs, 0, paramMsbs, 0, nparams);
+			System.arraycopy(state.paramLsbs, 0, paramLsbs, 0, nparams);
+		}
+
+		/**
+		 * @param ch the channel
+		 * @param controller the controller
+		 * @return the controller value or -1 if unknown
+		 */
+		public int getController(int ch, int controller) {
+			return values[ch * SLOTS + controller];
+		}
+
+		/**
+		 * @param ch the channel
+		 * @return the program or -1 if unknown
+		 */
+		public int getProgram(int ch) {
+			return values[ch * SLOTS + PROGRAM];
+		}
+
+		/**
+		 * @param ch the channel
+		 * @return the 14 bit pitch bend or -1 if unknown
+		 */
+		public int getPitchBend(int ch) {
+			return values[ch * SLOTS + BEND];
+		}
+
+		/**
+		 * Apply a MidiMessage.
+		 * @param msg the MidiMessage
+		 * @return true if the state was changed
+		 */
+		public boolean apply(MidiMessage msg) {
+			if ( !(msg instanceof ShortMessage) ) return false;
+			ShortMessage smsg = (ShortMessage)msg;
+			int status = smsg.getStatus();
+			if ( status >= 0xF0 ) return false;
+			int ch = status & 0x0F;
+			switch ( status & 0xF0 ) {
+			case ShortMessage.PROGRAM_CHANGE:
+				return set(ch, PROGRAM, smsg.getData1());
+			case ShortMessage.PITCH_BEND:
+				return set(ch, BEND, smsg.getData1() | (smsg.getData2() << 7));
+			case ShortMessage.CHANNEL_PRESSURE:
+				return set(ch, PRESSURE, smsg.getData1());
+			case ShortMessage.CONTROL_CHANGE:
+				return controller(ch, smsg.getData1(), smsg.getData2());
+			}
+			return false;
+		}
+
+		/**
+		 * Record that notes off have been sent, as by AbstractMessageTarget.
+		 * @param doControllers true if controllers were reset
+		 */
+		public void notesOff(boolean doControllers) {
+			if ( doControllers ) {
+				clear(); // the reset values depend on the receiver
+				return;
+			}
+			for ( int ch = 0; ch < 16; ch++ ) {
+				values[ch * SLOTS + 64] = 0; // hold pedal
+			}
+		}
+
+		private boolean set(int ch, int slot, int value) {
+			int i = ch * SLOTS + slot;
+			usedChannels |= 1 << ch;
+			if ( values[i] == value ) return false;
+			values[i] = (short)value;
+			return true;
+		}
+
+		private boolean controller(int ch, int controller, int value) {
+			switch ( controller ) {
+			case 6:		// data entry MSB
+			case 38:	// data entry LSB
+				int key = selectedKey(ch);
+				if ( key < 0 ) return false;
+				return param(key, controller == 6, value);
+			case 96:	// data increment
+			case 97:	// data decrement
+				return false; // rare and receiver dependent so not chased
+			case 98:
+			case 99:
+				selected[ch] = NRPN;
+				return set(ch, controller, value);
+			case 100:
+			case 101:
+				selected[ch] = RPN;
+				return set(ch, controller, value);
+			case 121:	// reset all controllers, as recommended practice RP-015
+				boolean changed = set(ch, 1, 0);
+				changed |= set(ch, 11, 127);
+				for ( int c = 64; c <= 67; c++ ) {
+					changed |= set(ch, c, 0);
+				}
+				changed |= set(ch, 101, 127);
+				changed |= set(ch, 100, 127);
+				changed |= set(ch, BEND, 0x2000);
+				changed |= set(ch, PRESSURE, 0);
+				return changed;
+			}
+			if ( controller >= 120 ) return false; // channel mode messages
+			return set(ch, controller, value);
+		}
+
+		// the key of the selected RPN or NRPN, or -1 if none or null
+		private int selectedKey(int ch) {
+			int base = ch * SLOTS;
+			int msb, lsb;
+			if ( selected[ch] == RPN ) {
+				msb = values[base + 101];
+				lsb = values[base + 100];
+			} else if ( selected[ch] == NRPN ) {
+				msb = values[base + 99];
+				lsb = values[base + 98];
+			} else {
+				return -1;
+			}
+			if ( msb < 0 || lsb < 0 || (msb == 127 && lsb == 127) ) return -1;
+			return ch << 16 | selected[ch] << 14 | msb << 7 | lsb;
+		}
+
+		private int findParam(int key) {
+			for ( int p = 0; p < nparams; p++ ) {
+				if ( paramKeys[p] == key ) return p;
+			}
+			return -1;
+		}
+
+		private boolean param(int key, boolean msb, int value) {
+			int p = findParam(key);
+			if ( p < 0 ) {
+				if ( nparams == paramKeys.length ) {
+					int n = nparams * 2;
+					int[] k = new int[n];
+					short[] m = new short[n];
+					short[] l = new short[n];
+					System.arraycopy(paramKeys, 0, k, 0, nparams);
+					System.arraycopy(paramMsbs, 0, m, 0, nparams);
+					System.arraycopy(paramLsbs, 0, l, 0, nparams);
+					paramKeys = k;
+					paramMsbs = m;
+					paramLsbs = l;
+				}
+				p = nparams++;
+				paramKeys[p] = key;
+				paramMsbs[p] = -1;
+				paramLsbs[p] = -1;
+			}
+			short[] values = msb ? paramMsbs : paramLsbs;
+			if ( values[p] == value ) return false;
+			values[p] = (short)value;
+			return true;
+		}
+
+		/**
+		 * Send the MidiMessages required to change the current state, i.e. the
+		 * state known to have been sent, to this state, and update the current
+		 * state accordingly. Values unknown to this state are not sent.
+		 * @param current the current state
+		 * @param sender the Sender
+		 */
+		public void chase(State current, Sender sender) {
+			int channels = usedChannels;
+			int base;
+			for ( int ch = 0; ch < 16; ch++ ) {
+				if ( (channels & (1 << ch)) == 0 ) continue;
+				base = ch * SLOTS;
+				// a bank select only takes effect with the next program change
+				boolean bank = false;
+				bank |= chase(current, sender, ch, ShortMessage.CONTROL_CHANGE, 0);
+				bank |= chase(current, sender, ch, ShortMessage.CONTROL_CHANGE, 32);
+				if ( bank && values[base + PROGRAM] >= 0 ) {
+					current.values[base + PROGRAM] = -1;
+				}
+				chase(current, sender, ch, ShortMessage.PROGRAM_CHANGE, PROGRAM);
+				for ( int c = 1; c < 120; c++ ) {
+					if ( c == 6 || c == 32 || c == 38 || (c >= 96 && c <= 101) ) continue;
+					chase(current, sender, ch, ShortMessage.CONTROL_CHANGE, c);
+				}
+				chaseParams(current, sender, ch);
+				// restore the selected RPN or NRPN
+				if ( selected[ch] != 0 ) {
+					int msb = selected[ch] == RPN ? 101 : 99;
+					if ( current.selected[ch] != selected[ch] ) {
+						current.values[base + msb] = -1;
+						current.values[base + msb - 1] = -1;
+					}
+					chase(current, sender, ch, ShortMessage.CONTROL_CHANGE, msb);
+					chase(current, sender, ch, ShortMessage.CONTROL_CHANGE, msb - 1);
+					current.selected[ch] = selected[ch];
+				}
+				chase(current, sender, ch, ShortMessage.PITCH_BEND, BEND);
+				chase(current, sender, ch, ShortMessage.CHANNEL_PRESSURE, PRESSURE);
+				current.usedChannels |= 1 << ch;
+			}
+		}
+
+		// send a single value if it is known and differs
+		private boolean chase(State current, Sender sender, int ch, int command, int slot) {
+			int i = ch * SLOTS + slot;
+			int value = values[i];
+			if ( value < 0 || value == current.values[i] ) return false;
+			switch ( command ) {
+			case ShortMessage.CONTROL_CHANGE:
+				sender.send(command, ch, slot, value);
+				break;
+			case ShortMessage.PITCH_BEND:
+				sender.send(command, ch, value & 0x7F, value >> 7);
+				break;
+			default:
+				sender.send(command, ch, value, 0);
+				break;
+			}
+			current.values[i] = (short)value;
+			return true;
+		}
+
+		private void chaseParams(State current, Sender sender, int ch) {
+			int key, c, msb, lsb;
+			for ( int p = 0; p < nparams; p++ ) {
+				key = paramKeys[p];
+				if ( (key >>> 16) != ch ) continue;
+				msb = paramMsbs[p];
+				lsb = paramLsbs[p];
+				c = current.findParam(key);
+				if ( c >= 0 && (msb < 0 || current.paramMsbs[c] == msb) &&
+					 (lsb < 0 || current.paramLsbs[c] == lsb) ) continue;
+				if ( msb < 0 && lsb < 0 ) continue;
+				// select the parameter
+				int selector = ((key >> 14) & 3) == RPN ? 101 : 99;
+				int base = ch * SLOTS;
+				current.values[base + selector] = (short)((key >> 7) & 0x7F);
+				current.values[base + selector - 1] = (short)(key & 0x7F);
+				current.selected[ch] = (byte)((key >> 14) & 3);
+				sender.send(ShortMessage.CONTROL_CHANGE, ch, selector, (key >> 7) & 0x7F);
+				sender.send(ShortMessage.CONTROL_CHANGE, ch, selector - 1, key & 0x7F);
+				if ( msb >= 0 ) {
+					sender.send(ShortMessage.CONTROL_CHANGE, ch, 6, msb);
+					current.param(key, true, msb);
+				}
+				if ( lsb >= 0 ) {
+					sender.send(ShortMessage.CONTROL_CHANGE, ch, 38, lsb);
+					current.param(key, false, lsb);
+				}
+			}
+		}
+	}
+}
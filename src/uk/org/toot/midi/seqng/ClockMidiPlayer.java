@@ -0,0 +1,276 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A MidiPlayer that generates MIDI clock, 24 clocks per beat, with Start,
+ * Continue, Stop and Song Position Pointer.
+ * MIDI clock messages are sent to the clock MessageTarget if set, otherwise
+ * to the first MidiTarget.MessageTarget in the list.
+ *
+ * The time each clock is due is calculated from its tick, which need not be
+ * integral, using the current linear segment, so clocks follow tempo changes
+ * as they are checked. The next clock is a deadline for the real-time thread,
+ * so clocks are subject only to thread timing jitter, or to none if there is
+ * a lookahead and the clock MessageTarget is a TimestampedMessageTarget.
+ *
+ * Start is sent when we start playing from zero, otherwise Song Position
+ * Pointer and Continue. Since a slave starts from the Song Position Pointer
+ * on the first clock after Continue, the Song Position Pointer is the next
+ * sixteenth note and clocks start from there, even beyond the maximum Song
+ * Position Pointer of 0x3FFF sixteenth notes, which is then sent instead.
+ * Stop is sent when we stop.
+ * On reposition or loop wrap Stop, Song Position Pointer and Continue are
+ * sent, and when stopped a reposition sends Song Position Pointer to cue
+ * the slave.
+ *
+ * MIDI clock messages are preallocated and reused, so MessageTargets should
+ * not retain them, and TimestampedMessageTargets must clone them if queued.
+ * @author st
+ *
+ */
+public class ClockMidiPlayer extends MidiPlayer
+{
+	private static final int CLOCKS_PER_BEAT = 24;
+	private static final int CLOCKS_PER_SIXTEENTH = 6;
+	private static final int MAX_SONG_POSITION = 0x3FFF;
+
+	private volatile boolean clockEnabled = false;
+	private volatile MidiTarget.MessageTarget clockTarget;	// null for the first EventSource
+
+	// only accessed synchronously with the real-time thread
+	private boolean clocking = false;	// whether the slave has been started
+	private long nextClock;				// index of the next clock from tick zero
+	private long clockOffset;			// loop offset of the clocks
+	private long lastClockNanos;		// wall time of the last message sent
+	private int failures = 0;
+
+	private ShortMessage clockMsg = new ShortMessage();
+	private ShortMessage startMsg = new ShortMessage();
+	private ShortMessage continueMsg = new ShortMessage();
+	private ShortMessage stopMsg = new ShortMessage();
+	private ShortMessage positionMsg = new ShortMessage();
+
+	public ClockMidiPlayer() {
+		try {
+			clockMsg.setMessage(ShortMessage.TIMING_CLOCK);
+			startMsg.setMessage(ShortMessage.START);
+			continueMsg.setMessage(ShortMessage.CONTINUE);
+			stopMsg.setMessage(ShortMessage.STOP);
+		} catch ( InvalidMidiDataException imde ) {
+			throw new IllegalStateException("Failed to create MIDI clock messages");
+		}
+	}
+
+	/**
+	 * Set whether MIDI clock is enabled. If we're running the slave is
+	 * started or stopped on the next pump.
+	 * @param enabled true if MIDI clock should be generated, false if not.
+	 */
+	public void setClockEnabled(boolean enabled) {
+		clockEnabled = enabled;
+	}
+
+	/**
+	 * @return whether MIDI clock is enabled
+	 */
+	public boolean isClockEnabled() {
+		return clockEnabled;
+	}
+
+	/**
+	 * Set the MessageTarget to send MIDI clock to.
+	 * @param target the MessageTarget, null for the first EventSource
+	 */
+	public void setClockTarget(MidiTarget.MessageTarget target) {
+		clockTarget = target;
+	}
+
+	/**
+	 * @return the MessageTarget MIDI clock is sent to, null for the first EventSource
+	 */
+	public MidiTarget.MessageTarget getClockTarget() {
+		return clockTarget;
+	}
+
+	@Override
+	protected boolean pump() {
+		// synchronize requested enable or disable, or start
+		if ( clockEnabled != clocking ) {
+			if ( clocking ) {
+				stopClock();
+			} else {
+				startClock(getCurrentTimeTicks() - getLoopOffset(), getCurrentTimeNanos(), startMsg);
+			}
+		}
+		return super.pump();
+	}
+
+	@Override
+	protected boolean pump(long targetTick) {
+		boolean empty = super.pump(targetTick);
+		// before a loop wrap, while the linear segment still applies
+		if ( clocking ) {
+			checkClocks((targetTick + 1) * CLOCKS_PER_BEAT,
+				getPositionDueNanos(getCurrentPositionNanos()) + getLookahead() * 1000000L);
+		}
+		return empty;
+	}
+
+	@Override
+	protected long getDueNanos() {
+		long due = super.getDueNanos();
+		if ( clockEnabled != clocking ) return getCurrentTimeNanos(); // due now
+		if ( !clocking ) return due;
+		return Math.min(due, getClockDueNanos(nextClock) - getLookahead() * 1000000L);
+	}
+
+	@Override
+	protected void repositioned(long tick, boolean wrapped) {
+		if ( !clocking ) {
+			if ( clockEnabled && !isRunning() ) {
+				sendSongPosition(getSongPosition(tick), System.nanoTime());
+			}
+			return;
+		}
+		long nanos;
+		if ( wrapped ) {
+			long wrapTick = tick + getLoopOffset();
+			nanos = getDueNanos(wrapTick);
+			// any clocks within the tick before the loop end are due now
+			while ( getClockTick(nextClock) < wrapTick * CLOCKS_PER_BEAT ) {
+				transportClock(clockMsg, nanos);
+				nextClock += 1;
+			}
+		} else {
+			nanos = getCurrentTimeNanos();
+		}
+		transportClock(stopMsg, Math.max(nanos, lastClockNanos));
+		startClock(tick, nanos, continueMsg);
+	}
+
+	@Override
+	protected void stopped() {
+		if ( clocking ) {
+			stopClock();
+		}
+		super.stopped();
+	}
+
+	/**
+	 * Start the slave, clocks starting from the next sixteenth note.
+	 * @param tick the MidiSource tick to start from
+	 * @param nanos the wall time to start
+	 * @param msg Start or Continue, Start being sent as Continue unless from zero
+	 */
+	protected void startClock(long tick, long nanos, ShortMessage msg) {
+		long position = getSongPosition(tick);
+		nanos = Math.max(nanos, lastClockNanos);
+		if ( position > 0 || msg != startMsg ) {
+			sendSongPosition(position, nanos);
+			msg = continueMsg;
+		}
+		transportClock(msg, nanos);
+		nextClock = position * CLOCKS_PER_SIXTEENTH; // unclamped, unlike the message
+		clockOffset = getLoopOffset();
+		clocking = true;
+	}
+
+	protected void stopClock() {
+		transportClock(stopMsg, Math.max(getCurrentTimeNanos(), lastClockNanos));
+		clocking = false;
+	}
+
+	/**
+	 * Send the clocks due by a time, if not already sent.
+	 * If pumping was late intervening clocks are sent late, since every clock
+	 * advances the slave.
+	 * @param limit the tick, times 24, to send clocks before
+	 * @param nanos the wall time to send clocks due by
+	 */
+	protected void checkClocks(long limit, long nanos) {
+		long due;
+		while ( getClockTick(nextClock) < limit && (due = getClockDueNanos(nextClock)) <= nanos ) {
+			transportClock(clockMsg, due);
+			nextClock += 1;
+		}
+	}
+
+	// the tick of a clock, including the loop offset, times 24
+	private long getClockTick(long clock) {
+		return clockOffset * CLOCKS_PER_BEAT + clock * source.getResolution();
+	}
+
+	/**
+	 * Return the wall time a clock is due, interpolating within a tick since
+	 * tempo only changes at whole ticks.
+	 * Only to be called synchronously with real-time thread.
+	 * @param clock the index of the clock from tick zero
+	 * @return the wall time in nanoseconds
+	 */
+	protected long getClockDueNanos(long clock) {
+		long ticks = getClockTick(clock);
+		long tick = ticks / CLOCKS_PER_BEAT;
+		int fraction = (int)(ticks % CLOCKS_PER_BEAT);
+		long due = getDueNanos(tick);
+		if ( fraction == 0 ) return due;
+		return due + (getDueNanos(tick + 1) - due) * fraction / CLOCKS_PER_BEAT;
+	}
+
+	/**
+	 * @param tick a MidiSource tick
+	 * @return the position, in sixteenth notes, of the next sixteenth note at
+	 * or after tick, which may exceed the maximum Song Position Pointer
+	 */
+	protected long getSongPosition(long tick) {
+		int resolution = source.getResolution();
+		return (tick * 4 + resolution - 1) / resolution;
+	}
+
+	/**
+	 * Send a Song Position Pointer, clamped to its maximum of 0x3FFF
+	 * sixteenth notes.
+	 * @param position the position in sixteenth notes
+	 * @param nanos the wall time it is due
+	 */
+	protected void sendSongPosition(long position, long nanos) {
+		int spp = (int)Math.min(position, MAX_SONG_POSITION);
+		try {
+			positionMsg.setMessage(ShortMessage.SONG_POSITION_POINTER,
+				spp & 0x7F, spp >> 7);
+			transportClock(positionMsg, nanos);
+		} catch ( InvalidMidiDataException imde ) {
+			failures++;
+			if ( failures == 1 )
+				System.err.println("Failed to create Song Position Pointer message");
+		}
+	}
+
+	/**
+	 * Send a MIDI clock message, timestamped if we have a lookahead and the
+	 * MessageTarget is a TimestampedMessageTarget.
+	 * @param msg the MidiMessage
+	 * @param nanos the wall time it is due
+	 */
+	protected void transportClock(MidiMessage msg, long nanos) {
+		MidiTarget.MessageTarget target = clockTarget;
+		if ( target == null ) {
+			MidiSource.EventSource src = eventSources().get(0);
+			if ( !(src instanceof MidiTarget.MessageTarget) ) return;
+			target = (MidiTarget.MessageTarget)src;
+		}
+		lastClockNanos = nanos;
+		if ( getLookahead() > 0 && target instanceof MidiTarget.TimestampedMessageTarget ) {
+			((MidiTarget.TimestampedMessageTarget)target).transport(msg, nanos / 1000L);
+		} else {
+			target.transport(msg);
+		}
+	}
+}
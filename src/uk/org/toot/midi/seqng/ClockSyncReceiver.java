@@ -0,0 +1,105 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A ClockSyncReceiver slaves a MidiPlayer to MIDI clock, 24 clocks per beat,
+ * with Start, Continue, Stop and Song Position Pointer.
+ *
+ * The MidiPlayer starts on the first clock after Start or Continue, from the
+ * beginning or from the Song Position Pointer respectively, and each clock
+ * then advances it by a 24th of a beat, so it plays at the master tempo
+ * rather than at the tempo of its MidiSource. The master tempo may be
+ * obtained from getBeatsPerMinute().
+ *
+ * MidiSource time is derived from the MidiPlayer's TempoMap, so a TempoMap
+ * should be precomputed with TempoMap.scan() if the MidiSource has tempo
+ * changes and may be repositioned.
+ * @author st
+ *
+ */
+public class ClockSyncReceiver extends SyncReceiver
+{
+	private static final int CLOCKS_PER_BEAT = 24;
+
+	private long songPosition = 0;	// in clocks
+	private boolean starting = false;	// Start or Continue awaiting a clock
+
+	/**
+	 * @param player the MidiPlayer to slave
+	 */
+	public ClockSyncReceiver(MidiPlayer player) {
+		super(player);
+	}
+
+	/**
+	 * @return the master tempo in beats per minute, 0 if not locked
+	 */
+	public float getBeatsPerMinute() {
+		double period = getPeriodNanos();
+		return period == 0 ? 0f : (float)(60000000000.0 / (CLOCKS_PER_BEAT * period));
+	}
+
+	@Override
+	protected void receive(MidiMessage msg, long nanos) {
+		switch ( msg.getStatus() ) {
+		case ShortMessage.TIMING_CLOCK:
+			if ( starting ) {
+				starting = false;
+				double nominal = getPeriodNanos();
+				if ( nominal == 0 ) {
+					nominal = 60000000000.0 / (CLOCKS_PER_BEAT * player.getBeatsPerMinute());
+				}
+				lock(songPosition, nanos, nominal);
+				player.play();
+			} else {
+				pulse(nanos);
+			}
+			break;
+		case ShortMessage.START:
+			if ( player.isRunning() ) break;
+			songPosition = 0;
+			locate(0);
+			starting = true;
+			break;
+		case ShortMessage.CONTINUE:
+			if ( player.isRunning() ) break;
+			locate(getTick(songPosition));
+			starting = true;
+			break;
+		case ShortMessage.STOP:
+			starting = false;
+			if ( !isLocked() ) break;
+			songPosition = getIndex() + 1; // the next clock would have been
+			unlock();
+			player.stop();
+			break;
+		case ShortMessage.SONG_POSITION_POINTER:
+			if ( player.isRunning() ) break; // only valid when stopped
+			ShortMessage smsg = (ShortMessage)msg;
+			// in sixteenth notes, 6 clocks each
+			songPosition = 6 * (smsg.getData1() | (smsg.getData2() << 7));
+			locate(getTick(songPosition));
+			break;
+		}
+	}
+
+	protected long getTick(long clocks) {
+		return clocks * player.source.getResolution() / CLOCKS_PER_BEAT;
+	}
+
+	@Override
+	protected double getSourceNanos(double clocks) {
+		TempoMap map = player.getTempoMap();
+		double ticks = clocks * map.getResolution() / CLOCKS_PER_BEAT;
+		long tick = (long)Math.floor(ticks);
+		return (map.tickToTime(tick) +
+			(ticks - tick) * map.getMicrosPerQuarter(tick) * 1000.0) / map.getResolution();
+	}
+}
@@ -0,0 +1,465 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.getString;
+import static uk.org.toot.midi.message.MetaMsg.getType;
+import static uk.org.toot.midi.message.MetaMsg.isMeta;
+import static uk.org.toot.midi.message.MetaMsg.TRACK_NAME;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * This class is an implementation of MidiSource which is robust in the face of
+ * edits whilst playing.
+ *
+ * Each EditableTrack holds an immutable snapshot of its events, ordered by
+ * tick and then by the order in which they were added. An edit copies the
+ * snapshot, applies the changes and publishes the new snapshot atomically, so
+ * edits by any number of threads are never lost, and the real-time thread
+ * never locks, it only reads the current snapshot.
+ *
+ * Each EventSource maintains its position by referencing the previous event,
+ * as recommended by MidiSource, by its tick and order rather than its index,
+ * so after an edit it simply resumes after the previous event in the new
+ * snapshot. Events inserted before the previous event are not played, events
+ * inserted after it are. next() always returns the event returned by the
+ * preceding peek(), even if it has since been deleted, and the previous event
+ * becomes that event, so an event inserted before it since the peek() is not
+ * played either. So an edit near the iterator position is never able to
+ * cause a note to be played twice or consumed early and lost.
+ *
+ * MidiEvents must not be modified once they have been added, replace() them
+ * instead. EditableTracks created whilst playing only become visible to the
+ * client when it next calls sync().
+ * @author st
+ *
+ */
+public class EditableMidiSource extends MidiSource
+{
+	private String name;
+	private int resolution;
+
+	private AtomicLong orders = new AtomicLong();
+
+	private List<EditableTrack> eventSources =
+		new java.util.ArrayList<EditableTrack>();
+
+	private List<EventSource> unmodifiableEventSources =
+		Collections.<EventSource>unmodifiableList(eventSources);
+
+	// tracks to be added to eventSources when the client next syncs
+	private ConcurrentLinkedQueue<EditableTrack> pending =
+		new ConcurrentLinkedQueue<EditableTrack>();
+
+	public EditableMidiSource(String name, int resolution) {
+		if ( resolution <= 0 ) {
+			throw new IllegalArgumentException("resolution must be positive");
+		}
+		this.name = name;
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Construct with a copy of the events of a Sequence.
+	 * The Sequence is not subsequently referenced.
+	 * @param name the name
+	 * @param sequence the Sequence
+	 */
+	public EditableMidiSource(String name, Sequence sequence) {
+		this(name, sequence.getResolution());
+		if ( sequence.getDivisionType() != Sequence.PPQ ) {
+			throw new IllegalArgumentException("Sequence division type must be PPQ");
+		}
+		for ( Track track : sequence.getTracks() ) {
+			List<MidiEvent> events = new java.util.ArrayList<MidiEvent>(track.size());
+			for ( int i = 0; i < track.size(); i++ ) {
+				events.add(track.get(i));
+			}
+			createTrack().addAll(events);
+		}
+	}
+
+	@Override
+	public List<EventSource> getEventSources() {
+		return unmodifiableEventSources;
+	}
+
+	@Override
+	public int getResolution() {
+		return resolution;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Create an empty EditableTrack.
+	 * If the client supports syncing the EditableTrack is added to the List
+	 * of EventSources when the client next calls sync(), otherwise it is added
+	 * immediately, which is only safe if the client is not playing.
+	 * @return the EditableTrack
+	 */
+	public EditableTrack createTrack() {
+		EditableTrack track = new EditableTrack();
+		if ( isSyncing() ) {
+			pending.offer(track);
+		} else {
+			synchronized ( eventSources ) {
+				track.trk = eventSources.size();
+				eventSources.add(track);
+			}
+		}
+		return track;
+	}
+
+	/**
+	 * @return a copy of the List of EditableTracks known to the client
+	 */
+	public List<EditableTrack> getTracks() {
+		synchronized ( eventSources ) {
+			return new java.util.ArrayList<EditableTrack>(eventSources);
+		}
+	}
+
+	@Override
+	public RepositionCommand sync(long currentTick) {
+		super.sync(currentTick);
+		if ( !pending.isEmpty() ) {
+			EditableTrack track;
+			synchronized ( eventSources ) {
+				while ( (track = pending.poll()) != null ) {
+					track.trk = eventSources.size();
+					// ensure a new track doesn't play events before currentTick
+					track.seek(currentTick);
+					eventSources.add(track);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	public void returnToZero() {
+		for ( EditableTrack track : eventSources ) {
+			track.returnToZero();
+		}
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	@Override
+	public void seek(long tick) {
+		for ( EditableTrack track : eventSources ) {
+			track.seek(tick);
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the events of an EditableTrack.
+	 * Events are ordered by tick and then by order, which is unique.
+	 */
+	private static class Snapshot
+	{
+		final long[] ticks;
+		final long[] orders;
+		final MidiEvent[] events;
+
+		static final Snapshot EMPTY = new Snapshot(new long[0], new long[0], new MidiEvent[0]);
+
+		Snapshot(long[] ticks, long[] orders, MidiEvent[] events) {
+			this.ticks = ticks;
+			this.orders = orders;
+			this.events = events;
+		}
+
+		int size() {
+			return ticks.length;
+		}
+
+		/**
+		 * @return the index of the first event after tick and order
+		 */
+		int after(long tick, long order) {
+			int lo = 0;
+			int hi = ticks.length;
+			int mid;
+			while ( lo < hi ) {
+				mid = (lo + hi) >>> 1;
+				if ( ticks[mid] < tick || (ticks[mid] == tick && orders[mid] <= order) ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @return the index of event or -1
+		 */
+		int indexOf(MidiEvent event) {
+			long tick = event.getTick();
+			for ( int i = after(tick, -1L); i < ticks.length && ticks[i] == tick; i++ ) {
+				if ( events[i] == event ) return i;
+			}
+			// the tick of event may have been changed, contrary to the contract
+			for ( int i = 0; i < events.length; i++ ) {
+				if ( events[i] == event ) return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * An EditableTrack is both the editable representation of a track and the
+	 * EventSource which iterates it.
+	 * Edits may be made by any thread, iteration is only by the client.
+	 */
+	public class EditableTrack implements EventSource
+	{
+		private AtomicReference<Snapshot> snapshot =
+			new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+		private int trk;
+		private String name;
+
+		// iterator state, only accessed by the client
+		private long prevTick = -1L;			// position after this tick
+		private long prevOrder = Long.MAX_VALUE;	// and this order
+		private Snapshot current;				// snapshot index refers to
+		private int index;						// of the next event in current
+		private MidiEvent peeked;				// returned by the last peek()
+		private long peekedTick, peekedOrder;
+
+		protected EditableTrack() {
+		}
+
+		/**
+		 * Add a MidiEvent, after any events with the same tick.
+		 * @param event the MidiEvent to add
+		 */
+		public void add(MidiEvent event) {
+			addAll(Collections.singletonList(event));
+		}
+
+		/**
+		 * Add MidiEvents atomically.
+		 * @param events the MidiEvents to add
+		 */
+		public void addAll(Collection<MidiEvent> events) {
+			edit(events, Collections.<MidiEvent>emptyList());
+		}
+
+		/**
+		 * Remove a MidiEvent.
+		 * @param event the MidiEvent to remove
+		 * @return true if the MidiEvent was removed
+		 */
+		public boolean remove(MidiEvent event) {
+			return edit(Collections.<MidiEvent>emptyList(), Collections.singletonList(event)) > 0;
+		}
+
+		/**
+		 * Remove MidiEvents atomically.
+		 * @param events the MidiEvents to remove
+		 * @return the number of MidiEvents removed
+		 */
+		public int removeAll(Collection<MidiEvent> events) {
+			return edit(Collections.<MidiEvent>emptyList(), events);
+		}
+
+		/**
+		 * Replace a MidiEvent atomically, e.g. to move or transpose a note.
+		 * @param oldEvent the MidiEvent to remove
+		 * @param newEvent the MidiEvent to add
+		 * @return true if oldEvent was found and replaced
+		 */
+		public boolean replace(MidiEvent oldEvent, MidiEvent newEvent) {
+			return edit(Collections.singletonList(newEvent), Collections.singletonList(oldEvent)) > 0;
+		}
+
+		/**
+		 * Atomically remove and then add MidiEvents.
+		 * Events to be removed which are not present are ignored, in which case
+		 * the events are added anyway.
+		 * @param additions the MidiEvents to add
+		 * @param removals the MidiEvents to remove
+		 * @return the number of MidiEvents removed
+		 */
+		public int edit(Collection<MidiEvent> additions, Collection<MidiEvent> removals) {
+			if ( additions.isEmpty() && removals.isEmpty() ) return 0;
+			// orders are allocated once so they are stable across retries
+			int nadd = additions.size();
+			MidiEvent[] adds = additions.toArray(new MidiEvent[nadd]);
+			long[] addTicks = new long[nadd];
+			long[] addOrders = new long[nadd];
+			for ( int i = 0; i < nadd; i++ ) {
+				addTicks[i] = adds[i].getTick();
+				addOrders[i] = orders.getAndIncrement();
+			}
+			sort(addTicks, addOrders, adds);
+			Snapshot prev, next;
+			int removed;
+			boolean[] remove;
+			do {
+				prev = snapshot.get();
+				int size = prev.size();
+				remove = new boolean[size];
+				removed = 0;
+				int r;
+				for ( MidiEvent event : removals ) {
+					r = prev.indexOf(event);
+					if ( r >= 0 && !remove[r] ) {
+						remove[r] = true;
+						removed += 1;
+					}
+				}
+				int n = size - removed + nadd;
+				long[] ticks = new long[n];
+				long[] ords = new long[n];
+				MidiEvent[] events = new MidiEvent[n];
+				// merge the survivors with the sorted additions
+				int i = 0, a = 0, j = 0;
+				while ( j < n ) {
+					while ( i < size && remove[i] ) i++;
+					if ( a < nadd && (i >= size || addTicks[a] < prev.ticks[i] ||
+							(addTicks[a] == prev.ticks[i] && addOrders[a] < prev.orders[i])) ) {
+						ticks[j] = addTicks[a];
+						ords[j] = addOrders[a];
+						events[j++] = adds[a++];
+					} else {
+						ticks[j] = prev.ticks[i];
+						ords[j] = prev.orders[i];
+						events[j++] = prev.events[i++];
+					}
+				}
+				next = new Snapshot(ticks, ords, events);
+			} while ( !snapshot.compareAndSet(prev, next) );
+			return removed;
+		}
+
+		/**
+		 * @return the number of MidiEvents
+		 */
+		public int size() {
+			return snapshot.get().size();
+		}
+
+		/**
+		 * @return an unmodifiable List of the MidiEvents at the time of calling
+		 */
+		public List<MidiEvent> getEvents() {
+			return Collections.unmodifiableList(java.util.Arrays.asList(snapshot.get().events));
+		}
+
+		public MidiEvent peek() {
+			Snapshot snap = snapshot.get();
+			if ( snap != current ) {
+				current = snap;
+				index = snap.after(prevTick, prevOrder);
+			}
+			if ( index >= snap.size() ) {
+				peeked = null;
+				return null;
+			}
+			peeked = snap.events[index];
+			peekedTick = snap.ticks[index];
+			peekedOrder = snap.orders[index];
+			return peeked;
+		}
+
+		public MidiEvent next() {
+			MidiEvent evt = peeked;
+			if ( evt == null ) {
+				evt = peek();
+				if ( evt == null ) return null;
+			}
+			// always consume the event last peeked, which the client may have
+			// transported, even if it has since been deleted or events have
+			// been inserted before it, so edits are treated as having occurred
+			// after it was consumed and nothing is lost or played twice
+			prevTick = peekedTick;
+			prevOrder = peekedOrder;
+			if ( snapshot.get() == current ) {
+				index += 1;
+			} else {
+				current = null; // relocate after it on the next peek
+			}
+			peeked = null;
+			return evt;
+		}
+
+		public void returnToZero() {
+			seek(0L);
+		}
+
+		// position after every event before tick
+		public void seek(long tick) {
+			prevTick = tick - 1;
+			prevOrder = Long.MAX_VALUE;
+			current = null;
+			peeked = null;
+		}
+
+		public String getName() {
+			if ( name == null ) {
+				String aname = getMetaName(TRACK_NAME);
+				name = aname == null ? "Player: Track "+(1+trk) : "Player: "+aname;
+			}
+			return name;
+		}
+
+		protected String getMetaName(int type) {
+			for ( MidiEvent event : snapshot.get().events ) {
+				MidiMessage msg = event.getMessage();
+				if ( isMeta(msg) && getType(msg) == type ) {
+					return getString(msg);
+				}
+			}
+			return null;
+		}
+	}
+
+	// insertion sort by tick, stable, additions are typically few and ordered
+	private static void sort(long[] ticks, long[] orders, MidiEvent[] events) {
+		for ( int i = 1; i < ticks.length; i++ ) {
+			long t = ticks[i];
+			long o = orders[i];
+			MidiEvent e = events[i];
+			int j = i - 1;
+			while ( j >= 0 && ticks[j] > t ) {
+				ticks[j + 1] = ticks[j];
+				orders[j + 1] = orders[j];
+				events[j + 1] = events[j];
+				j -= 1;
+			}
+			ticks[j + 1] = t;
+			orders[j + 1] = o;
+			events[j + 1] = e;
+		}
+	}
+}
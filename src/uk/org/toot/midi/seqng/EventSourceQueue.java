@@ -0,0 +1,154 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+
+/**
+ * An EventSourceQueue is a binary min-heap of the EventSources in a List,
+ * keyed on the tick of each EventSource's next MidiEvent, so that the
+ * EventSources may be merged in tick order without peeking them all.
+ * Equal keys are ordered by index in the List so that the first EventSource,
+ * which may contain Tempo events, takes precedence.
+ * Exhausted EventSources are removed from the heap until it is rebuilt.
+ * @author st
+ *
+ */
+class EventSourceQueue
+{
+	private List<MidiSource.EventSource> list;	// the List we were built from
+	private int listSize;
+
+	private MidiSource.EventSource[] sources = new MidiSource.EventSource[0];
+	private long[] keys = new long[0];		// by index in the List
+	private int[] heap = new int[0];		// indices in the List
+	private int size;
+
+	/**
+	 * @param list the List of EventSources that is to be merged
+	 * @return true if the List differs from the one we were built from
+	 */
+	public boolean isStale(List<MidiSource.EventSource> list) {
+		return list != this.list || list.size() != listSize;
+	}
+
+	/**
+	 * Ensure the next call of isStale() returns true.
+	 */
+	public void invalidate() {
+		list = null;
+	}
+
+	/**
+	 * Empty the heap and release the EventSources, so that they may be
+	 * collected, ensuring the next call of isStale() returns true.
+	 */
+	public void clear() {
+		list = null;
+		size = 0;
+		for ( int j = 0; j < sources.length; j++ ) {
+			sources[j] = null;
+		}
+	}
+
+	/**
+	 * Rebuild the heap, peeking every EventSource in the List.
+	 * @param list the List of EventSources
+	 * @param renderer the MidiRenderer which provides tick offsets
+	 */
+	public void rebuild(List<MidiSource.EventSource> list, MidiRenderer renderer) {
+		this.list = list;
+		listSize = list.size();
+		if ( sources.length < listSize ) {
+			sources = new MidiSource.EventSource[listSize];
+			keys = new long[listSize];
+			heap = new int[listSize];
+		}
+		size = 0;
+		int i = 0;
+		MidiEvent evt;
+		for ( MidiSource.EventSource src : list ) {
+			sources[i] = src;
+			evt = src.peek();
+			if ( evt != null ) {
+				keys[i] = evt.getTick() + renderer.getTickOffset(src, i);
+				heap[size++] = i;
+			}
+			i += 1;
+		}
+		for ( int j = i; j < sources.length; j++ ) {
+			sources[j] = null; // don't retain removed EventSources
+		}
+		for ( int h = size / 2 - 1; h >= 0; h-- ) {
+			siftDown(h);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the index in the List of the EventSource with the lowest key
+	 */
+	public int peekIndex() {
+		return heap[0];
+	}
+
+	/**
+	 * @return the EventSource with the lowest key
+	 */
+	public MidiSource.EventSource peekSource() {
+		return sources[heap[0]];
+	}
+
+	/**
+	 * @return the lowest key
+	 */
+	public long peekKey() {
+		return keys[heap[0]];
+	}
+
+	/**
+	 * Change the key of the EventSource with the lowest key.
+	 * @param key the new key
+	 */
+	public void update(long key) {
+		keys[heap[0]] = key;
+		siftDown(0);
+	}
+
+	/**
+	 * Remove the EventSource with the lowest key.
+	 */
+	public void remove() {
+		size -= 1;
+		if ( size > 0 ) {
+			heap[0] = heap[size];
+			siftDown(0);
+		}
+	}
+
+	private void siftDown(int h) {
+		int idx = heap[h];
+		int child;
+		while ( (child = 2 * h + 1) < size ) {
+			if ( child + 1 < size && less(heap[child + 1], heap[child]) ) {
+				child += 1;
+			}
+			if ( !less(heap[child], idx) ) break;
+			heap[h] = heap[child];
+			h = child;
+		}
+		heap[h] = idx;
+	}
+
+	private boolean less(int a, int b) {
+		return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+	}
+}
@@ -0,0 +1,256 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.*;
+
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * This class renders MIDI from a MidiSource against an external sample frame
+ * clock, typically from within an audio callback, so that MIDI and audio can
+ * not drift apart and events are placed at the correct frame within each
+ * buffer rather than on buffer boundaries. It has no thread of its own.
+ *
+ * Each call of render(frame, nframes, receiver) passes the MidiMessages due
+ * in the frames [frame, frame + nframes) to the Receiver, in time order, with
+ * their frame offsets within the buffer.
+ *
+ * Time is calculated from linear tempo segments as for MidiPlayer, using a
+ * TempoMap, but in frames rather than wall time. The MidiSource is pumped
+ * one tick at a time, EventSources being merged using a heap, so that a tempo
+ * change takes effect for subsequent events within the same buffer.
+ *
+ * The frame at which tick 0 is due is the first frame rendered after the
+ * MidiSource is set or returned to zero.
+ * @author st
+ *
+ */
+public class FrameMidiRenderer extends MidiRenderer
+{
+	private float sampleRate;
+	private TempoMap tempoMap;
+
+	private long segmentTick;		// tick at start of current segment
+	private long segmentTime;		// time at start of current segment, nanoseconds * resolution
+	private long tickTime;			// of current segment, nanoseconds * resolution
+	private double framesPerNano;
+
+	private long originFrame;		// the frame at which tick 0 is due
+	private long originTick = -1;	// if not -1 the tick due at the next frame rendered
+	private boolean primed;			// whether getNextTick() is valid
+
+	private long bufferFrame;		// the first frame of the current buffer
+	private int bufferFrames;
+	private Receiver receiver;
+
+	/**
+	 * @param sampleRate the sample rate of the frame clock in frames per second
+	 */
+	public FrameMidiRenderer(float sampleRate) {
+		if ( sampleRate <= 0 ) {
+			throw new IllegalArgumentException("sample rate must be positive");
+		}
+		this.sampleRate = sampleRate;
+		framesPerNano = sampleRate / 1000000000.0;
+		setMerging(true);
+	}
+
+	@Override
+	public void setMidiSource(MidiSource source) {
+		super.setMidiSource(source);
+		tempoMap = new TempoMap(source.getResolution());
+		seekImpl(0L);
+	}
+
+	/**
+	 * @return the sample rate in frames per second
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Set a precomputed TempoMap, typically from TempoMap.scan(), so that
+	 * seek() is accurate before all Tempo events have been rendered.
+	 * Should only be called synchronously with render().
+	 * @param map the TempoMap for the current MidiSource
+	 */
+	public void setTempoMap(TempoMap map) {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		if ( map.getResolution() != source.getResolution() ) {
+			throw new IllegalArgumentException("TempoMap resolution doesn't match MidiSource");
+		}
+		tempoMap = map;
+	}
+
+	/**
+	 * @return the TempoMap
+	 */
+	public TempoMap getTempoMap() {
+		if ( tempoMap == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		return tempoMap;
+	}
+
+	/**
+	 * Return to tick 0, which will be due at the next frame rendered.
+	 * Should only be called synchronously with render().
+	 */
+	public void returnToZero() {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		source.returnToZero();
+		seekImpl(0L);
+	}
+
+	/**
+	 * Reposition to a tick, which will be due at the next frame rendered.
+	 * Active notes are not turned off, that is the responsibility of the caller.
+	 * Should only be called synchronously with render().
+	 * @param tick the tick to seek to
+	 * @throws UnsupportedOperationException if the MidiSource isn't seekable
+	 */
+	public void seek(long tick) {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		if ( tick < 0 ) {
+			throw new IllegalArgumentException("tick can't be negative");
+		}
+		source.seek(tick);
+		seekImpl(tick);
+	}
+
+	private void seekImpl(long tick) {
+		eventSourcesChanged();
+		primed = false;
+		setSegment(tick, tempoMap.getMicrosPerQuarter(tick));
+		originTick = tick;
+	}
+
+	/**
+	 * Render the MidiMessages due in the frames [frame, frame + nframes).
+	 * Does not allocate unless the MidiSource does.
+	 * @param frame the first frame of the buffer, on the external frame clock
+	 * @param nframes the number of frames in the buffer
+	 * @param receiver the Receiver of the MidiMessages
+	 * @return true if the MidiSource is exhausted, false otherwise
+	 */
+	public boolean render(long frame, int nframes, Receiver receiver) {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		if ( nframes <= 0 ) {
+			throw new IllegalArgumentException("nframes must be positive");
+		}
+		if ( originTick >= 0 ) {
+			originFrame = frame -
+				Math.round(tempoMap.tickToTime(originTick) * framesPerNano / source.getResolution());
+			originTick = -1;
+		}
+		bufferFrame = frame;
+		bufferFrames = nframes;
+		this.receiver = receiver;
+		try {
+			if ( !primed ) {
+				// transports nothing but determines the next tick
+				pump(-1L);
+				primed = true;
+			}
+			long end = frame + nframes;
+			long tick;
+			// pump each tick in turn so tempo changes apply within the buffer
+			while ( (tick = getNextTick()) != Long.MAX_VALUE ) {
+				if ( getFrame(tick) >= end ) return false;
+				pump(tick);
+			}
+			return true;
+		} finally {
+			this.receiver = null;
+		}
+	}
+
+	/**
+	 * Convert a tick to a frame using the current linear segment, or the
+	 * TempoMap for ticks before the current linear segment.
+	 * @param tick the tick
+	 * @return the frame on the external frame clock
+	 */
+	public long getFrame(long tick) {
+		long time;
+		if ( tick >= segmentTick ) {
+			time = TempoMap.toTime(segmentTick, segmentTime, tickTime, tick);
+		} else {
+			time = tempoMap.tickToTime(tick);
+		}
+		return originFrame + Math.round(time * framesPerNano / source.getResolution());
+	}
+
+	/**
+	 * @param tick the tick at the start of the segment
+	 * @param micros the tempo in microseconds per quarter note
+	 */
+	protected void setSegment(long tick, int micros) {
+		segmentTick = tick;
+		segmentTime = tempoMap.tickToTime(tick);
+		tickTime = TempoMap.getTickTime(micros);
+	}
+
+	@Override
+	protected List<MidiSource.EventSource> eventSources() {
+		return source.getEventSources();
+	}
+
+	@Override
+	protected void transport(MidiEvent evt, MidiSource.EventSource src, int i) {
+		long offset = getFrame(evt.getTick() + getTickOffset(src, i)) - bufferFrame;
+		// early events, before a seek or the origin, are played at the start
+		if ( offset < 0 ) offset = 0;
+		if ( offset >= bufferFrames ) offset = bufferFrames - 1;
+		receiver.receive(evt.getMessage(), (int)offset, src, i);
+	}
+
+	@Override
+	protected void transport(MidiMessage msg, MidiSource.EventSource src, int i) {
+		receiver.receive(msg, 0, src, i);
+	}
+
+	@Override
+	protected void check(MidiEvent event) {
+		MidiMessage msg = event.getMessage();
+		if ( isMeta(msg) && getType(msg) == TEMPO ) {
+			int micros = TempoMap.getMicrosPerQuarter(msg);
+			if ( micros <= 0 ) return; // invalid
+			tempoMap.addTempo(event.getTick(), micros);
+			setSegment(event.getTick(), micros);
+		}
+	}
+
+	/**
+	 * A Receiver receives the MidiMessages rendered for a buffer.
+	 * A MidiMessage is only valid for the duration of the call, because it may
+	 * be reused by the EventSource, so it must be cloned if it is retained.
+	 * @author st
+	 */
+	public interface Receiver
+	{
+		/**
+		 * @param msg the MidiMessage
+		 * @param frameOffset the offset of the frame it is due within the buffer
+		 * @param src the EventSource
+		 * @param i the index of the EventSource within the List
+		 */
+		public void receive(MidiMessage msg, int frameOffset, MidiSource.EventSource src, int i);
+	}
+}
@@ -7,17 +7,24 @@ package uk.org.toot.midi.seqng;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
 
-import uk.org.toot.midi.message.CommonMsg;
 import uk.org.toot.midi.message.TimeMsg;
 import uk.org.toot.midi.message.MTC;
 
 /**
  * A MidiPlayer that generates Quarter Frame MTC messages.
  * MTC messages are sent to the first MidiTarget.MessageTarget in the list.
- * MTC Messages are sent on the nearest millisecond, this has minimal jitter for
- * 25 fps and up to 0.5 millisecond jitter for 24 and 30 fps, plus any thread
- * timing jitter.
+ *
+ * Every frame rate has an integral number of quarter frames in a block of an
+ * integral number of nanoseconds, 1 second or 1.001 seconds for 29.97 Drop
+ * Frame, so the time each quarter frame is due is calculated exactly in
+ * integer nanoseconds, without rounding errors accumulating however long we
+ * play. The next quarter frame is a deadline for the real-time thread, so
+ * quarter frames are subject only to thread timing jitter.
+ *
+ * Quarter frame messages are preallocated and reused, one per piece, so
+ * MessageTargets should not retain them.
  * We also send a Full MTC message on returnToZero().
  * Default frame rate is 25fps.
  * @author st
@@ -26,20 +33,26 @@ import uk.org.toot.midi.message.MTC;
 public class MTCMidiPlayer extends MidiPlayer
 {
 	private boolean mtcEnabled = false;
-	private int prevqf = -1;	// previous quarter frame index, force next to be 0
-	private float mspf;			// milliseconds per frame
-	private float mspqf;		// milliseconds per quarter frame
-	private float qfpms;		// quarter frames per millisecond
+	private long prevqf = -1;	// previous quarter frame index, -1 if none
+	private long blockNanos;	// nanoseconds per block
+	private int qfPerBlock;		// quarter frames per block
+	private int rateCode;		// as encoded in piece 7
 	private int failures = 0;
 
+	private ShortMessage[] pieces = new ShortMessage[8];
+
 	private MTC.Time time = new MTC.Time();
+	private long timeFrame = -1; // the frame count time was encoded for
 	private MTC.FrameRate rate;
-	private MTC.FrameRate requestedRate;
-	
+	private volatile MTC.FrameRate requestedRate;
+
 	public MTCMidiPlayer() {
+		for ( int i = 0; i < pieces.length; i++ ) {
+			pieces[i] = new ShortMessage();
+		}
 		setMTCFrameRate(MTC.FrameRate.FPS_25);
 	}
-	
+
 	/**
 	 * Set whether MTC is enabled.
 	 * @param enabled true if MTC should be generated, false if not.
@@ -47,14 +60,14 @@ public class MTCMidiPlayer extends MidiPlayer
 	public void setMTCEnabled(boolean enabled) {
 		mtcEnabled = enabled;
 	}
-	
+
 	/**
 	 * @return whether MTC is enabled
 	 */
 	public boolean isMTCEnabled() {
 		return mtcEnabled;
 	}
-	
+
 	/**
 	 * Get the current MTC Frame Rate
 	 * @return the current MTC Frame Rate
@@ -62,85 +75,139 @@ public class MTCMidiPlayer extends MidiPlayer
 	public MTC.FrameRate getMTCFrameRate() {
 		return rate;
 	}
-	
+
 	/**
- 	 * Set the MTC Frame Rate in frames per second
-	 * @param fps frame per second, either 24, 25 or 30, default 25
+ 	 * Set the MTC Frame Rate
+	 * @param rate 24, 25, 29.97 Drop Frame or 30 fps, default 25
 	 */
 	public void setMTCFrameRate(MTC.FrameRate rate) {
 		if ( rate == this.rate ) return; // no change
-		if ( rate == MTC.FrameRate.FPS_30DF ) {
-			throw new IllegalArgumentException("Drop Frame not supported");
-		}
 		if ( !isRunning() ) {
 			setMTCFrameRateImpl(rate);
 		}
 		requestedRate = rate;
 	}
-	
+
 	// called synchronously with real-time thread if running
 	protected void setMTCFrameRateImpl(MTC.FrameRate rate) {
+		blockNanos = 1000000000L;
+		switch ( rate ) {
+		case FPS_24: rateCode = 0; break;
+		case FPS_25: rateCode = 1; break;
+		case FPS_30DF: rateCode = 2; blockNanos = 1001000000L; break;
+		case FPS_30: rateCode = 3; break;
+		default:
+			throw new IllegalArgumentException("Unsupported frame rate "+rate);
+		}
+		qfPerBlock = 4 * rate.getRate();
 		this.rate = rate;
-		mspf = 1000f / rate.getRate();	
-		mspqf = mspf / 4;	
-		qfpms = 1 / mspqf;
+		prevqf = -1;
+		timeFrame = -1;
 	}
-	
+
 	@Override
 	protected boolean pump() {
 		boolean ret = super.pump();
-		if ( mtcEnabled ) checkQFdue(getMillisecondPosition());
+		if ( mtcEnabled ) checkQuarterFrame(getCurrentPositionNanos());
 		return ret;
 	}
-	
+
+	@Override
+	protected long getDueNanos() {
+		long due = super.getDueNanos();
+		if ( !mtcEnabled ) return due;
+		long qf = getQuarterFrame(getCurrentPositionNanos());
+		if ( qf == prevqf ) qf += 1; // otherwise not yet sent, so due now
+		return Math.min(due, getPositionDueNanos(getQuarterFrameNanos(qf)));
+	}
+
+	/**
+	 * @param nanos a position in nanoseconds
+	 * @return the index of the latest quarter frame due at the position
+	 */
+	protected long getQuarterFrame(long nanos) {
+		if ( nanos < 0 ) return -1;
+		return (nanos / blockNanos) * qfPerBlock + (nanos % blockNanos) * qfPerBlock / blockNanos;
+	}
+
 	/**
-	 * Encode hh:mm:ss:ff into quarter frame MTC if due at this time
-	 * @param millis the time in milliseconds
+	 * @param qf the index of a quarter frame
+	 * @return the position in nanoseconds at which the quarter frame is due
 	 */
-	protected void checkQFdue(long millis) {
+	protected long getQuarterFrameNanos(long qf) {
+		long r = (qf % qfPerBlock) * blockNanos;
+		return (qf / qfPerBlock) * blockNanos + (r + qfPerBlock - 1) / qfPerBlock;
+	}
+
+	/**
+	 * Send the quarter frame due at a position, if not already sent.
+	 * If pumping was late intervening quarter frames are not sent.
+	 * @param nanos the position in nanoseconds
+	 */
+	protected void checkQuarterFrame(long nanos) {
 		// synchronize requested rate change
 		if ( rate != requestedRate ) {
 			setMTCFrameRateImpl(requestedRate);
 		}
-		// we want to count 8 quarter frames every two frames
-		// there are fps frames per second, so fps quarter frames per 250 milliseconds
-		// we modulus by 250 because all fps's have integral number of quarter frames
-		// and we want to prevent arithmetic errors with large millis
-		// we divide by milliseconds per frame to get the frame float
-		// we modulus by 2 because 8 quarter frames take 2 frames
-		float f = ((float)(millis % 250) / mspf) % 2f;
-		// we enable rounding by adding half of a quarter frame per millisecond
-		// this ensures the quarter frame is detected on the nearest millisecond
-		float qff = qfpms / 2 + 4 * f;
-		// we modulus by 8 because rounding addition may have gone above 8
-		int qf = (int)qff % 8;
-		if ( qf != prevqf ) {
-			if ( qf == 0 ) {	// cache for all 8 quarter frames
-				time.frames = Math.round((float)(millis % 1000) / mspf);
-				long s = millis / 1000; 		// total seconds
-				time.seconds = (int) (s % 60); 	// second within minute
-				long m = s / 60; 				// total minutes
-				time.minutes = (int) (m % 60); 	// minutes within hour
-				long h = m / 60; 				// total hours
-				time.hours = (int) (h % 24); 	// hours within day
-			}
-			try {
-				MidiMessage msg = CommonMsg.createMTCQuarterFrame(qf, time, rate);
-				if ( msg != null ) {
-					transportMTC(msg);
-				}
-			} catch ( InvalidMidiDataException imde ) {
-				failures++;
-				if ( failures == 1 ) 
-					System.err.println("Failed to create MTC Quarter Frame message");
-			}
-			prevqf = qf;
-		}		
+		long qf = getQuarterFrame(nanos);
+		if ( qf < 0 || qf == prevqf ) return;
+		prevqf = qf;
+		// 8 quarter frames encode the frame at which piece 0 is due
+		long frame = (qf >> 3) << 1;
+		if ( frame != timeFrame ) {
+			setTime(frame);
+			timeFrame = frame;
+		}
+		int piece = (int)(qf & 7);
+		int value;
+		switch ( piece ) {
+		case 0: value = time.frames & 0x0F; break;
+		case 1: value = time.frames >> 4; break;
+		case 2: value = time.seconds & 0x0F; break;
+		case 3: value = time.seconds >> 4; break;
+		case 4: value = time.minutes & 0x0F; break;
+		case 5: value = time.minutes >> 4; break;
+		case 6: value = time.hours & 0x0F; break;
+		default: value = (rateCode << 1) | (time.hours >> 4); break;
+		}
+		try {
+			ShortMessage msg = pieces[piece];
+			msg.setMessage(ShortMessage.MIDI_TIME_CODE, (piece << 4) | value, 0);
+			transportMTC(msg);
+		} catch ( InvalidMidiDataException imde ) {
+			failures++;
+			if ( failures == 1 )
+				System.err.println("Failed to create MTC Quarter Frame message");
+		}
 	}
-	
+
+	/**
+	 * Encode a frame count as hh:mm:ss:ff, dropping frame numbers 0 and 1
+	 * from each minute except every tenth for 29.97 Drop Frame.
+	 * @param frame the frame count
+	 */
+	protected void setTime(long frame) {
+		int fps = rate.getRate();
+		if ( rate == MTC.FrameRate.FPS_30DF ) {
+			// 17982 frames per 10 minutes, 1798 per minute after the first
+			long d = frame / 17982;
+			long m = frame % 17982;
+			frame += 18 * d + (m < 2 ? 0 : 2 * ((m - 2) / 1798));
+		}
+		time.frames = (int)(frame % fps);
+		long s = frame / fps;			// total seconds
+		time.seconds = (int)(s % 60);	// second within minute
+		long m = s / 60;				// total minutes
+		time.minutes = (int)(m % 60);	// minutes within hour
+		long h = m / 60;				// total hours
+		time.hours = (int)(h % 24);		// hours within day
+	}
+
 	@Override
 	public void returnToZero() {
 		super.returnToZero();
+		prevqf = -1;
+		timeFrame = -1;
 		// send Full MTC message
 		time.clear();
 		try {
@@ -151,11 +218,11 @@ public class MTCMidiPlayer extends MidiPlayer
 			System.err.println("Failed to create MTC Full message");
 		}
 	}
-	
+
 	protected void transportMTC(MidiMessage msg) {
 		MidiSource.EventSource src = eventSources().get(0);
 		if ( src instanceof MidiTarget.MessageTarget ) {
 			((MidiTarget.MessageTarget) src).transport(msg);
-		}		
-	}	
+		}
+	}
 }
@@ -0,0 +1,181 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * An MTCSyncReceiver slaves a MidiPlayer to MTC quarter frames, at 24, 25,
+ * 29.97 Drop Frame or 30 fps as encoded in the quarter frames.
+ *
+ * We lock when 8 consecutive quarter frames have been received, the time they
+ * encode, less the timecode offset, being the MidiSource time, so the
+ * MidiPlayer is repositioned and played. Each subsequent quarter frame is a
+ * pulse, one missed quarter frame is tolerated, but if quarter frames are
+ * otherwise discontinuous, e.g. when the master is shuttling, we unlock and
+ * stop. A Full MTC message also unlocks and stops, and repositions the
+ * MidiPlayer. If the time encoded by 8 quarter frames differs from that
+ * expected the master has jumped and the MidiPlayer is repositioned.
+ *
+ * MidiSource time is converted to ticks by the MidiPlayer's TempoMap, so a
+ * TempoMap should be precomputed with TempoMap.scan() if the MidiSource has
+ * tempo changes.
+ * @author st
+ *
+ */
+public class MTCSyncReceiver extends SyncReceiver
+{
+	private int[] pieces = new int[8];
+	private int prevPiece = -1;
+	private int consecutive = 0;	// pieces received in order from piece 0
+
+	private long qf = -1;			// index of the last quarter frame, -1 unless locked
+	private int rateCode = -1;
+	private int qfPerBlock;			// quarter frames per block
+	private long blockNanos;		// nanoseconds per block
+
+	private volatile long offsetNanos = 0L;
+	private volatile long lockedOffsetNanos = 0L;	// offsetNanos when we last locked
+
+	/**
+	 * @param player the MidiPlayer to slave
+	 */
+	public MTCSyncReceiver(MidiPlayer player) {
+		super(player);
+	}
+
+	/**
+	 * Set the timecode which corresponds to the start of the MidiSource,
+	 * e.g. one hour. Takes effect when next locked.
+	 * @param millis the timecode offset in milliseconds, default 0
+	 */
+	public void setTimecodeOffset(long millis) {
+		offsetNanos = millis * 1000000L;
+	}
+
+	/**
+	 * @return the timecode offset in milliseconds
+	 */
+	public long getTimecodeOffset() {
+		return offsetNanos / 1000000L;
+	}
+
+	@Override
+	protected void receive(MidiMessage msg, long nanos) {
+		if ( msg.getStatus() == ShortMessage.MIDI_TIME_CODE ) {
+			quarterFrame(((ShortMessage)msg).getData1(), nanos);
+			return;
+		}
+		byte[] data = msg.getMessage();
+		// Full message F0 7F id 01 01 hr mn sc fr F7
+		if ( data.length >= 10 && (data[0] & 0xFF) == 0xF0 && data[1] == 0x7F &&
+				data[3] == 0x01 && data[4] == 0x01 ) {
+			consecutive = 0;
+			prevPiece = -1;
+			if ( qf >= 0 ) {
+				qf = -1;
+				unlock();
+				player.stop();
+			}
+			setRate((data[5] >> 5) & 3);
+			long frame = getFrame(data[5] & 0x1F, data[6], data[7], data[8]);
+			long position = frame * 4 * blockNanos / qfPerBlock - offsetNanos;
+			if ( position >= 0 ) {
+				locate(player.getTempoMap().nanosToTick(position));
+			}
+		}
+	}
+
+	protected void quarterFrame(int data, long nanos) {
+		if ( qf >= 0 && !isLocked() ) {
+			qf = -1; // the MidiPlayer was stopped other than by us
+		}
+		int piece = (data >> 4) & 7;
+		pieces[piece] = data & 0x0F;
+		if ( piece == 0 ) {
+			consecutive = 1;
+		} else if ( consecutive > 0 && piece == prevPiece + 1 ) {
+			consecutive += 1;
+		} else {
+			consecutive = 0;
+		}
+		prevPiece = piece;
+		if ( qf >= 0 ) {
+			int expected = (int)((qf + 1) & 7);
+			if ( piece == expected ) {
+				qf += 1;
+				pulse(nanos);
+			} else if ( piece == ((expected + 1) & 7) ) {
+				qf += 2;
+				skip();
+				pulse(nanos);
+			} else {
+				qf = -1;
+				unlock();
+				player.stop();
+				return;
+			}
+		}
+		if ( piece != 7 || consecutive != 8 ) return;
+		// 8 quarter frames encode the frame at which piece 0 was sent
+		int code = (pieces[7] >> 1) & 3;
+		if ( code != rateCode && qf >= 0 ) {
+			qf = -1;
+			unlock(); // before our time is affected
+		}
+		setRate(code);
+		long frame = getFrame(pieces[6] | ((pieces[7] & 1) << 4),
+			pieces[4] | (pieces[5] << 4), pieces[2] | (pieces[3] << 4),
+			pieces[0] | (pieces[1] << 4));
+		long index = frame * 4 + 7;
+		if ( index == qf ) return; // as expected
+		long offset = offsetNanos;
+		double position = getSourceNanos(index, offset);
+		if ( position < 0 ) return; // before the MidiSource starts
+		long tick = player.getTempoMap().nanosToTick((long)position);
+		double nominal = (double)blockNanos / qfPerBlock;
+		qf = index;
+		lockedOffsetNanos = offset; // so our time doesn't jump while locked
+		if ( player.isRunning() ) { // the master has jumped
+			lock(index, nanos, nominal, player.source.isSeekable() ? tick : -1L);
+			return;
+		}
+		locate(tick);
+		lock(index, nanos, nominal);
+		player.play();
+	}
+
+	protected void setRate(int code) {
+		rateCode = code;
+		int fps = code == 0 ? 24 : code == 1 ? 25 : 30;
+		qfPerBlock = 4 * fps;
+		blockNanos = code == 2 ? 1001000000L : 1000000000L;
+	}
+
+	/**
+	 * Convert hh:mm:ss:ff to a frame count, frame numbers 0 and 1 having been
+	 * dropped from each minute except every tenth for 29.97 Drop Frame.
+	 */
+	protected long getFrame(int hours, int minutes, int seconds, int frames) {
+		int fps = qfPerBlock / 4;
+		long minute = 60L * hours + minutes;
+		long frame = (minute * 60 + seconds) * fps + frames;
+		if ( rateCode == 2 ) {
+			frame -= 2 * (minute - minute / 10);
+		}
+		return frame;
+	}
+
+	@Override
+	protected double getSourceNanos(double index) {
+		return getSourceNanos(index, lockedOffsetNanos);
+	}
+
+	private double getSourceNanos(double index, long offset) {
+		return index * blockNanos / qfPerBlock - offset;
+	}
+}
@@ -6,19 +6,31 @@
 package uk.org.toot.midi.seqng;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
 
 import static uk.org.toot.midi.message.MetaMsg.*;
 
 /**
  * MidiPlayer plays MIDI from MidiSources in real-time. It is the real-time part
- * of a 'sequencer'. It cannot support controller chasing, repositioning while
- * running, or looping. It cannot easily support mute/solo because the List of
+ * of a 'sequencer'. It can only reposition or loop if the MidiSource is
+ * seekable, and it only chases controllers if it has a ChaseIndex, see
+ * setChaseIndex(). It cannot easily support
+ * mute/solo because the List of
  * EventSources may be dynamic. These operations must be provided by individual
  * MidiSource implementations as appropriate.
  * 
+ * Transport events are delivered to TransportListeners and Observers
+ * asynchronously by a TransportEventBus, so that user code never runs on the
+ * real-time thread.
+ * 
  * Effectively we solve the law of motion: distance = velocity * time.
  * 
  * Distance is measured in ticks, velocity in bpm and time is, well, time.
@@ -27,15 +39,28 @@ import static uk.org.toot.midi.message.MetaMsg.*;
  * total distance is the accumulation of a contiguous series of these linear
  * segments.
  * 
- * Because we only have knowledge of the current linear segment and the
- * accumulation of all previous linear segments we are unable to calculate the
- * position for arbitrary times that are outside the current linear segment.
- * Fundamentally this is why we cannot reposition or loop, we can't convert an
- * arbitrary time to a position. In principle we could cache details of all
- * linear segments but this does not scale well (we can play for over 200
- * million years, with position accurately calculated to within 1 millisecond,
- * which could be a very large cache) and is arguably best performed by a
- * MidiSource which may already have such a cache in practice.
+ * Velocity is held exactly as encoded in Tempo events, in microseconds per
+ * quarter note, and positions within a segment are calculated in integer
+ * nanoseconds multiplied by the resolution, in which every tick has an exact
+ * integral duration. Conversions between ticks and time are therefore exact,
+ * rounded only to the nanosecond at the point of use, and no rounding errors
+ * accumulate however many tempo changes are played.
+ * 
+ * The current linear segment is sufficient to play, but to calculate the
+ * position for arbitrary times outside the current linear segment we cache
+ * the details of all linear segments in a TempoMap. Only one segment is stored
+ * per tempo change rather than per unit of time played, and the TempoMap is
+ * only extended as Tempo events are played, unless it is precomputed with
+ * TempoMap.scan() and set with setTempoMap(). Repositioning beyond the last
+ * Tempo event played therefore assumes the last known tempo continues.
+ * 
+ * When looping, the MidiSource is sought back to the loop start as the loop
+ * end becomes due, within the same pump, and the ticks of subsequent events are
+ * offset by the accumulated loop lengths, so that our ticks increase
+ * monotonically and the wrap is seamless. The loop length in ticks is exact and
+ * the time at which each wrap is due is derived from the duration of the first
+ * complete iteration, so rounding errors do not accumulate over iterations.
+ * The tick and millisecond positions are reported relative to the MidiSource.
  * 
  * @author st
  * 
@@ -43,27 +68,76 @@ import static uk.org.toot.midi.message.MetaMsg.*;
 public class MidiPlayer extends MidiRenderer
 {
 	private PlayEngine playEngine;
-	private boolean running = false;
+	private SharedPlayEngine sharedEngine;	// null to play on a thread of our own
+	volatile SharedPlayEngine.Worker worker;	// of the sharedEngine while playing
+	volatile RuntimeException failure;		// which stopped us on the sharedEngine
+	private long deadline = -1L;			// of the next pump, -1 if none
+	private volatile boolean running = false;
 	private boolean stopOnEmpty = true;
 	private float bpm;
+	private int resolution;
 	
 	private long accumTicks;		// accumulated ticks up to current segment
-	private long accumMillis;		// accumulated milliseconds up to current segment
-	private long refMillis;			// wall time at start of current segment
-	private long elapsedMillis; 	// elapsed time within current segment
-	private float ticksPerMilli;	// velocity of current segment
-	
-	/**
-	 * A lock object, required to make the accumulation of elapsedMillis into
-	 * accumMillis and the associated zeroing of elapsedMillis atomic so that
-	 * getMillisecondPosition() does not return transient erroneous values under
-	 * stop and tempo change conditions. The only times this lock is used on the
-	 * real-time thread are when a tempo change occurs and when the thread is
-	 * stopping. Lock contention will only occur if getMillisecondPosition()
-	 * holds the lock at that exact time and this is very unlikely given that it
-	 * merely adds two longs.
-	 */
-	private Object milliLock = new Object();
+	private long accumNanos;		// accumulated nanoseconds up to current segment
+	private int accumFraction;		// and the fraction of a nanosecond, * resolution
+	private long refNanos;			// wall time at start of current segment, less the fraction
+	private long elapsedNanos; 		// elapsed time within current segment
+	private int microsPerQuarter;	// velocity of current segment
+	private long tickTime;			// duration of a tick, in nanoseconds * resolution
+	
+	private TempoMap tempoMap;
+	private AtomicLong seekTick = new AtomicLong(-1);	// pending reposition, -1 if none
+	
+	private long spinNanos = 200000L;		// busy wait for the final 200 microseconds
+	private long maxParkNanos = 10000000L;	// wake at least every 10 milliseconds
+	private long idleParkNanos = 100000000L;// or every 100 milliseconds if idle
+	
+	private long lookaheadNanos = 0L;
+	private long flushNanos;				// latest timestamp transported
+	
+	private volatile Loop loop;				// the loop points, null if none
+	private volatile boolean looping = false;
+	private Loop currentLoop;				// as known by the real-time thread
+	private long loopNanos;					// duration of currentLoop in the MidiSource
+	private long loopOffset;				// ticks added to MidiSource ticks by looping
+	private long pumpedTick;				// the last target tick pumped
+	private long retargetTick;				// the target tick as retargeted
+	private long pumpLimit;					// the tick retargeting may not pass
+	private boolean tempoChanged = false;	// since the last retarget
+	private int loopCount;					// wraps since loopAnchorNanos, -1 if none
+	private long loopAnchorNanos;			// wall time of a wrap
+	private long loopPeriodNanos;			// wall time of the first complete iteration
+	
+	private ChaseIndex chaseIndex;			// null unless chasing
+	private ChaseIndex.State chaseState = new ChaseIndex.State();
+	private ChaseIndex.State[] sentStates = new ChaseIndex.State[0]; // per EventSource
+	private ChaseSender chaseSender = new ChaseSender();
+	
+	private volatile SyncReceiver syncReceiver;	// null unless slaved
+	
+	private volatile long[] timeOffsets = new long[0];	// microseconds per EventSource
+	private long[] compMicros;				// timeOffsets as converted to compTicks
+	private long[] compTicks = new long[0];
+	private int compMicrosPerQuarter;		// tempo compTicks was converted at
+	
+	private PlayerMetrics metrics = new PlayerMetrics();
+	private volatile boolean instrumented = false;
+	private boolean timing = false;			// instrumented for the current pump
+	
+	/**
+	 * The current linear segment as published to other threads.
+	 * The fields above are only accessed synchronously with the real-time thread
+	 * and a new immutable Segment is published whenever they change, which is
+	 * only on tempo change, reposition, start and stop. Other threads calculate
+	 * the position from a single Segment and the current time, so they never
+	 * block the real-time thread and never see a mix of old and new segments.
+	 */
+	private volatile Segment segment = new Segment(0L, 0L, 0L, 0, 500000000L, 1, 120f, false, 0L, null, 0L);
+	
+	private List<TransportListener> transportListeners =
+		new CopyOnWriteArrayList<TransportListener>();
+	private AtomicInteger transportEvents = new AtomicInteger(); // pending
+	private volatile TransportEventBus transportEventBus;
 
 	@Override
 	public void setMidiSource(MidiSource source) {
@@ -71,6 +145,8 @@ public class MidiPlayer extends MidiRenderer
 			throw new IllegalStateException("Can't set MidiSource while playing");
 		}
 		super.setMidiSource(source);
+		tempoMap = null;
+		chaseIndex = null;
 		init();
 		source.sync(0); // quickly inform source we support syncing
 		notesOff();
@@ -84,8 +160,13 @@ public class MidiPlayer extends MidiRenderer
 			throw new IllegalStateException("MidiSource is null");
 		}
 		if ( running ) return;
+		refNanos = getCurrentTimeNanos(); // prevent badval on 1st getTickPosition()
 		setRunning(true);
-		playEngine = new PlayEngine();
+		if ( sharedEngine != null ) {
+			sharedEngine.add(this);
+		} else {
+			playEngine = new PlayEngine();
+		}
 	}
 	
 	/**
@@ -93,7 +174,80 @@ public class MidiPlayer extends MidiRenderer
 	 */
 	public void stop() {
 		if ( !running ) return;
-		playEngine.stop();
+		// sharedEngine can't change while running
+		if ( sharedEngine != null ) {
+			SharedPlayEngine.Worker w = worker;
+			if ( w != null ) { // null if already finishing
+				w.remove(this);
+			}
+		} else {
+			playEngine.stop();
+		}
+	}
+	
+	/**
+	 * Slave us to a SyncReceiver, which replaces our clock with one that
+	 * follows an external master, see SyncReceiver. Called by the SyncReceiver
+	 * constructor, so only needs to be called explicitly to stop being slaved.
+	 * @param receiver the SyncReceiver, null to be master
+	 */
+	public void setSyncReceiver(SyncReceiver receiver) {
+		if ( running ) {
+			throw new IllegalStateException("Can't set SyncReceiver while playing");
+		}
+		if ( receiver != null ) {
+			if ( receiver.getPlayer() != this ) {
+				throw new IllegalArgumentException("SyncReceiver is for another MidiPlayer");
+			}
+			if ( lookaheadNanos > 0 ) {
+				throw new IllegalStateException("Can't be slaved with a lookahead");
+			}
+			if ( sharedEngine != null ) {
+				throw new IllegalStateException("Can't be slaved on a SharedPlayEngine");
+			}
+		}
+		syncReceiver = receiver;
+	}
+	
+	/**
+	 * @return the SyncReceiver, null unless slaved
+	 */
+	public SyncReceiver getSyncReceiver() {
+		return syncReceiver;
+	}
+	
+	/**
+	 * Set a SharedPlayEngine to play on, rather than on a thread of our own,
+	 * so that many MidiPlayers may be serviced by few real-time threads.
+	 * Tempo, position, looping and stopping are unaffected.
+	 * A slaved MidiPlayer can't play on a SharedPlayEngine since its deadlines
+	 * are in SyncReceiver time rather than wall time.
+	 * @param engine the SharedPlayEngine, null to play on a thread of our own
+	 */
+	public void setSharedPlayEngine(SharedPlayEngine engine) {
+		if ( running ) {
+			throw new IllegalStateException("Can't set SharedPlayEngine while playing");
+		}
+		if ( engine != null && syncReceiver != null ) {
+			throw new IllegalStateException("Can't play on a SharedPlayEngine while slaved");
+		}
+		sharedEngine = engine;
+	}
+	
+	/**
+	 * @return the SharedPlayEngine, null if we play on a thread of our own
+	 */
+	public SharedPlayEngine getSharedPlayEngine() {
+		return sharedEngine;
+	}
+	
+	/**
+	 * @return the last RuntimeException which stopped us while playing on a
+	 * SharedPlayEngine, or null if none, so that it may be reported other
+	 * than by the real-time thread
+	 */
+	public RuntimeException getFailure() {
+		return failure;
 	}
 	
 	/**
@@ -108,12 +262,15 @@ public class MidiPlayer extends MidiRenderer
 			throw new IllegalStateException("Can't returnToZero while playing");
 		}
 		source.returnToZero();
+		eventSourcesChanged();
 		init();
+		repositioned(0L, false);
+		post(TransportEventBus.REPOSITION);
 	}
 	
 	/**
 	 * Return whether we're currently playing.
-	 * Note that observers are notified immediately subsequent to transitions.
+	 * Note that observers are notified asynchronously subsequent to transitions.
 	 * @return true if playing (or stopping), false if stopped
 	 */
 	public boolean isRunning() {
@@ -125,7 +282,8 @@ public class MidiPlayer extends MidiRenderer
 	 * @return the tick position in the MidiSource
 	 */
 	public long getTickPosition() {
-		return getCurrentTimeTicks();
+		Segment s = segment;
+		return s.getTick(s.getElapsedNanos(getCurrentTimeNanos()));
 	}
 	
 	/**
@@ -133,9 +291,251 @@ public class MidiPlayer extends MidiRenderer
 	 * @return the millisecond position in the MidiSource
 	 */
 	public long getMillisecondPosition() {
-		synchronized ( milliLock ) {
-			return accumMillis + elapsedMillis;
+		Segment s = segment;
+		return s.getMillis(s.getElapsedNanos(getCurrentTimeNanos()));
+	}
+	
+	/**
+	 * Get a consistent snapshot of the transport state, i.e. the tick and
+	 * millisecond positions, the tempo and whether we're running, all as
+	 * at the same instant.
+	 * @return the Snapshot
+	 */
+	public Snapshot getSnapshot() {
+		Segment s = segment;
+		long elapsed = s.getElapsedNanos(getCurrentTimeNanos());
+		return new Snapshot(s.getTick(elapsed), s.getMillis(elapsed), s.bpm, s.running);
+	}
+	
+	/**
+	 * Reposition to a tick. If we're running the reposition occurs synchronously
+	 * with the real-time thread on the next pump and active notes are turned off.
+	 * @param tick the tick position in the MidiSource
+	 * @throws UnsupportedOperationException if the MidiSource isn't seekable
+	 */
+	public void setTickPosition(long tick) {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		if ( tick < 0 ) {
+			throw new IllegalArgumentException("tick can't be negative");
+		}
+		if ( !source.isSeekable() ) {
+			throw new UnsupportedOperationException("MidiSource "+source.getName()+" can't seek");
+		}
+		if ( running ) {
+			seekTick.set(tick);
+		} else {
+			seek(tick);
+		}
+	}
+	
+	/**
+	 * Reposition to a time, as converted to a tick by the TempoMap.
+	 * @param millis the millisecond position in the MidiSource
+	 * @throws UnsupportedOperationException if the MidiSource isn't seekable
+	 */
+	public void setMillisecondPosition(long millis) {
+		if ( millis < 0 ) {
+			throw new IllegalArgumentException("millis can't be negative");
+		}
+		setTickPosition(getTempoMap().millisToTick(millis));
+	}
+	
+	/**
+	 * Get the TempoMap, which may be used to convert between ticks and time
+	 * for the MidiSource.
+	 * @return the TempoMap
+	 */
+	public TempoMap getTempoMap() {
+		if ( tempoMap == null ) {
+			throw new IllegalStateException("MidiSource is null");
 		}
+		return tempoMap;
+	}
+	
+	/**
+	 * Set a precomputed TempoMap, typically from TempoMap.scan(), so that
+	 * repositioning is accurate before all Tempo events have been played.
+	 * @param map the TempoMap for the current MidiSource
+	 */
+	public void setTempoMap(TempoMap map) {
+		if ( running ) {
+			throw new IllegalStateException("Can't set TempoMap while playing");
+		}
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		if ( map.getResolution() != source.getResolution() ) {
+			throw new IllegalArgumentException("TempoMap resolution doesn't match MidiSource");
+		}
+		tempoMap = map;
+	}
+	
+	/**
+	 * Set the time by which an EventSource is delayed or advanced, typically to
+	 * compensate for the differing latencies of hardware MIDI ports and
+	 * softsynths. Unlike getTickOffset() the offset is constant in time at any
+	 * tempo. It is converted to ticks using the current tempo, to determine
+	 * when events are fetched, and TimestampedMessageTargets receive exact
+	 * timestamps if there is a lookahead.
+	 * Advancing does not require a lookahead, the merge keys include the
+	 * offset so the real-time thread wakes for advanced events at their own
+	 * earlier due time.
+	 * May be called while playing, taking effect on the next pump.
+	 * @param index the index of the EventSource in the List
+	 * @param micros the offset in microseconds, positive to delay, negative to advance
+	 */
+	public synchronized void setTimeOffset(int index, long micros) {
+		if ( index < 0 ) {
+			throw new IllegalArgumentException("index can't be negative");
+		}
+		long[] offsets = timeOffsets;
+		long[] o = new long[Math.max(offsets.length, index + 1)];
+		System.arraycopy(offsets, 0, o, 0, offsets.length);
+		o[index] = micros;
+		timeOffsets = o; // copy on write so the real-time thread never locks
+	}
+	
+	/**
+	 * @param index the index of the EventSource in the List
+	 * @return the time offset in microseconds
+	 */
+	public long getTimeOffset(int index) {
+		long[] offsets = timeOffsets;
+		return index < offsets.length ? offsets[index] : 0L;
+	}
+	
+	/**
+	 * Set whether the real-time thread records timing metrics, which costs
+	 * a few calls of System.nanoTime() per event.
+	 * @param instrument true to record metrics
+	 */
+	public void setInstrumented(boolean instrument) {
+		instrumented = instrument;
+	}
+	
+	/**
+	 * @return whether timing metrics are recorded
+	 */
+	public boolean isInstrumented() {
+		return instrumented;
+	}
+	
+	/**
+	 * Get the PlayerMetrics, which are only recorded while we're instrumented.
+	 * @return the PlayerMetrics
+	 */
+	public PlayerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Set a precomputed ChaseIndex, from ChaseIndex.scan(), so that the
+	 * program, controller, pitch bend and RPN/NRPN state of every channel is
+	 * chased when we reposition or loop.
+	 * @param index the ChaseIndex for the current MidiSource, or null to not chase
+	 */
+	public void setChaseIndex(ChaseIndex index) {
+		if ( running ) {
+			throw new IllegalStateException("Can't set ChaseIndex while playing");
+		}
+		if ( index != null && source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		chaseIndex = index;
+		for ( int i = 0; i < sentStates.length; i++ ) {
+			sentStates[i] = null; // the state sent is unknown
+		}
+	}
+	
+	/**
+	 * @return the ChaseIndex or null
+	 */
+	public ChaseIndex getChaseIndex() {
+		return chaseIndex;
+	}
+	
+	/**
+	 * Set the loop points. If we're looping the new loop points apply from the
+	 * next pump, a wrap only occurs if the loop end is subsequently reached.
+	 * @param startTick the tick the loop starts at, inclusive
+	 * @param endTick the tick the loop ends at, exclusive
+	 */
+	public void setLoopPoints(long startTick, long endTick) {
+		if ( startTick < 0 ) {
+			throw new IllegalArgumentException("loop start can't be negative");
+		}
+		if ( endTick <= startTick ) {
+			throw new IllegalArgumentException("loop end must be after loop start");
+		}
+		loop = new Loop(startTick, endTick);
+	}
+	
+	/**
+	 * @return the loop start tick, or -1 if no loop points have been set
+	 */
+	public long getLoopStartTick() {
+		Loop l = loop;
+		return l == null ? -1L : l.start;
+	}
+	
+	/**
+	 * @return the loop end tick, or -1 if no loop points have been set
+	 */
+	public long getLoopEndTick() {
+		Loop l = loop;
+		return l == null ? -1L : l.end;
+	}
+	
+	/**
+	 * Set whether we loop between the loop points.
+	 * @param loop true to loop
+	 * @throws UnsupportedOperationException if the MidiSource isn't seekable
+	 */
+	public void setLooping(boolean loop) {
+		if ( loop ) {
+			if ( this.loop == null ) {
+				throw new IllegalStateException("loop points have not been set");
+			}
+			if ( source == null ) {
+				throw new IllegalStateException("MidiSource is null");
+			}
+			if ( !source.isSeekable() ) {
+				throw new UnsupportedOperationException("MidiSource "+source.getName()+" can't loop");
+			}
+		}
+		looping = loop;
+	}
+	
+	/**
+	 * @return whether we loop between the loop points
+	 */
+	public boolean isLooping() {
+		return looping;
+	}
+	
+	/**
+	 * Add a TransportListener, which will be notified asynchronously.
+	 * @param listener the TransportListener to add
+	 */
+	public void addTransportListener(TransportListener listener) {
+		transportListeners.add(listener);
+	}
+	
+	/**
+	 * @param listener the TransportListener to remove
+	 */
+	public void removeTransportListener(TransportListener listener) {
+		transportListeners.remove(listener);
+	}
+	
+	/**
+	 * Set the TransportEventBus which delivers our transport events.
+	 * @param bus the TransportEventBus, by default TransportEventBus.getDefault()
+	 */
+	public void setTransportEventBus(TransportEventBus bus) {
+		transportEventBus = bus;
 	}
 	
 	/**
@@ -143,7 +543,7 @@ public class MidiPlayer extends MidiRenderer
 	 * @return the current tempo
 	 */
 	public float getBeatsPerMinute() {
-		return bpm;
+		return segment.bpm;
 	}
 	
 	/**
@@ -155,27 +555,170 @@ public class MidiPlayer extends MidiRenderer
 		stopOnEmpty = soe;
 	}
 	
+	/**
+	 * Set the time before a deadline at which the real-time thread stops parking
+	 * and busy waits instead, trading cpu for sub-millisecond accuracy.
+	 * Zero disables busy waiting so accuracy is limited by the OS park granularity.
+	 * @param nanos the spin time in nanoseconds, default 200 microseconds
+	 */
+	public void setSpinNanos(long nanos) {
+		if ( nanos < 0 ) {
+			throw new IllegalArgumentException("spin time can't be negative");
+		}
+		spinNanos = nanos;
+	}
+	
+	/**
+	 * Set the longest time the real-time thread will park while events are pending.
+	 * This bounds the latency with which edits to the MidiSource are noticed.
+	 * @param nanos the maximum park time in nanoseconds, default 10 milliseconds
+	 */
+	public void setMaxParkNanos(long nanos) {
+		if ( nanos <= 0 ) {
+			throw new IllegalArgumentException("park time must be positive");
+		}
+		maxParkNanos = nanos;
+	}
+	
+	/**
+	 * Set the time the real-time thread will park when nothing is pending,
+	 * which only applies if we do not stop on empty.
+	 * @param nanos the idle park time in nanoseconds, default 100 milliseconds
+	 */
+	public void setIdleParkNanos(long nanos) {
+		if ( nanos <= 0 ) {
+			throw new IllegalArgumentException("park time must be positive");
+		}
+		idleParkNanos = nanos;
+	}
+	
+	/**
+	 * Set the lookahead, the time by which we pump ahead of the wall clock.
+	 * MidiMessages are then transported to TimestampedMessageTargets early,
+	 * together with the time they are due, so they may be scheduled precisely
+	 * and thread timing jitter does not affect output timing.
+	 * Other MessageTargets receive MidiMessages early by up to the lookahead,
+	 * so a lookahead should only be used if all MessageTargets are
+	 * TimestampedMessageTargets.
+	 * Stop, mute and reposition turn off notes at the latest timestamp already
+	 * transported, and after a reposition the MidiSource plays from then.
+	 * @param millis the lookahead in milliseconds, default 0 which disables it
+	 */
+	public void setLookahead(long millis) {
+		if ( running ) {
+			throw new IllegalStateException("Can't set lookahead while playing");
+		}
+		if ( millis > 0 && syncReceiver != null ) {
+			throw new IllegalStateException("Can't set lookahead while slaved");
+		}
+		if ( millis < 0 ) {
+			throw new IllegalArgumentException("lookahead can't be negative");
+		}
+		lookaheadNanos = millis * 1000000L;
+	}
+	
+	/**
+	 * @return the lookahead in milliseconds
+	 */
+	public long getLookahead() {
+		return lookaheadNanos / 1000000L;
+	}
+	
 	protected void init() {
-		setBpm(120);
+		resolution = source.getResolution();
+		setTempo(500000); // 120 bpm
 		accumTicks = 0L;
-		accumMillis = 0L;		
+		accumNanos = 0L;
+		accumFraction = 0;
+		elapsedNanos = 0L;
+		loopOffset = 0L;
+		pumpedTick = -1L;
+		loopCount = -1;
+		seekTick.set(-1);
+		// Tempo events already played remain valid after returnToZero()
+		if ( tempoMap == null ) {
+			tempoMap = new TempoMap(source.getResolution());
+		}
+		publish();
 	}
 	
 	protected void setBpm(float bpm) {
-		ticksPerMilli = source.getResolution() * bpm / 60000;
-		this.bpm = bpm;
+		setTempo(Math.round(60000000f / bpm));
+	}
+
+	/**
+	 * Set the velocity of the current segment.
+	 * @param micros the tempo in microseconds per quarter note
+	 */
+	protected void setTempo(int micros) {
+		microsPerQuarter = micros;
+		tickTime = TempoMap.getTickTime(micros);
+		bpm = 60000000f / micros;
 	}
 
 	protected void setRunning(boolean r) {
 		running = r;
-		setChanged();
-		notifyObservers();		
+		publish();
+		post(TransportEventBus.RUNNING);
+	}
+	
+	/**
+	 * Post transport events for asynchronous delivery.
+	 * Real-time safe, does not block.
+	 * @param events the TransportEventBus event bits
+	 */
+	protected void post(int events) {
+		int pending;
+		do {
+			pending = transportEvents.get();
+		} while ( !transportEvents.compareAndSet(pending, pending | events) );
+		if ( pending == 0 ) { // otherwise already queued
+			TransportEventBus bus = transportEventBus;
+			if ( bus == null ) {
+				bus = transportEventBus = TransportEventBus.getDefault();
+			}
+			bus.post(this);
+		}
+	}
+	
+	// called by the TransportEventBus dispatcher thread
+	int takeTransportEvents() {
+		return transportEvents.getAndSet(0);
+	}
+	
+	// called by the TransportEventBus dispatcher thread, 0 for a position change
+	void dispatchTransportEvents(int events) {
+		Snapshot snapshot = getSnapshot();
+		for ( TransportListener l : transportListeners ) {
+			if ( events == 0 ) {
+				l.positionChanged(snapshot);
+				continue;
+			}
+			if ( (events & TransportEventBus.REPOSITION) != 0 ) l.repositioned(snapshot);
+			if ( (events & TransportEventBus.TEMPO) != 0 ) l.tempoChanged(snapshot);
+			if ( (events & TransportEventBus.RUNNING) != 0 ) l.runningChanged(snapshot);
+		}
+		if ( (events & TransportEventBus.RUNNING) != 0 ) {
+			setChanged();
+			notifyObservers();
+		}
 	}
 	
 	protected void notesOff() {
+		notesOff(true);
+	}
+	
+	/**
+	 * @param doControllers true for stop, false for mute or reposition
+	 */
+	protected void notesOff(boolean doControllers) {
+		long flush = Math.max(flushNanos, getCurrentTimeNanos()) / 1000L;
+		sentNotesOff(doControllers);
 		for ( MidiSource.EventSource src : eventSources() ) {
-			if ( src instanceof MidiTarget.MessageTarget ) {
-				((MidiTarget.MessageTarget)src).notesOff(true);
+			if ( lookaheadNanos > 0 && src instanceof MidiTarget.TimestampedMessageTarget ) {
+				((MidiTarget.TimestampedMessageTarget)src).notesOff(doControllers, flush);
+			} else if ( src instanceof MidiTarget.MessageTarget ) {
+				((MidiTarget.MessageTarget)src).notesOff(doControllers);
 			}			
 		}		
 	}
@@ -186,6 +729,14 @@ public class MidiPlayer extends MidiRenderer
 		setRunning(false);
 	}
 	
+	@Override
+	protected void eventSourcesChanged() {
+		super.eventSourcesChanged();
+		if ( source != null ) {
+			metrics.setEventSourceCount(source.getEventSources().size());
+		}
+	}
+	
 	@Override
 	protected List<MidiSource.EventSource> eventSources() {
 		if ( source == null ) {
@@ -194,6 +745,34 @@ public class MidiPlayer extends MidiRenderer
 		return source.getEventSources();
 	}
 	
+	@Override
+	protected void transport(MidiEvent evt, MidiSource.EventSource src, int idx) {
+		if ( chaseIndex != null ) {
+			getSentState(idx).apply(evt.getMessage());
+		}
+		if ( timing ) {
+			long now = getCurrentTimeNanos();
+			long due = getDueNanos(evt, src, idx) - lookaheadNanos;
+			metrics.eventDispatched(now - due);
+			dispatch(evt, src, idx);
+			metrics.transportTimed(idx, getCurrentTimeNanos() - now);
+		} else {
+			dispatch(evt, src, idx);
+		}
+	}
+	
+	private void dispatch(MidiEvent evt, MidiSource.EventSource src, int idx) {
+		if ( lookaheadNanos > 0 && src instanceof MidiTarget.TimestampedMessageTarget ) {
+			long due = getDueNanos(evt, src, idx);
+			if ( due > flushNanos ) {
+				flushNanos = due;
+			}
+			((MidiTarget.TimestampedMessageTarget)src).transport(evt.getMessage(), due / 1000L);
+		} else {
+			transport(evt.getMessage(), src, idx);
+		}
+	}
+	
 	@Override
 	protected void transport(MidiMessage msg, MidiSource.EventSource src, int idx) {
 		if ( src instanceof MidiTarget.MessageTarget ) {
@@ -206,36 +785,210 @@ public class MidiPlayer extends MidiRenderer
 		MidiMessage msg = event.getMessage();
 		if ( isMeta(msg) ) {
 			if ( getType(msg) == TEMPO ) {
-				setBpm(getTempo(msg));
-				// start a new linear segment
-				accumTicks = event.getTick(); // by definition
-				synchronized ( milliLock ) {
-					accumMillis += elapsedMillis;
-					// about to be reset but ensure consistency for getMillisecondPosition()
-					elapsedMillis = 0;
-				}
-				refMillis = getCurrentTimeMillis();
+				int micros = TempoMap.getMicrosPerQuarter(msg);
+				if ( micros <= 0 ) return; // invalid
+				// start a new linear segment when the Tempo event was due,
+				// which may be in the future if we're looking ahead
+				long tick = event.getTick() + loopOffset;
+				long time = TempoMap.toTime(accumTicks, accumFraction, tickTime, tick);
+				long segmentNanos = Math.floorDiv(time, resolution);
+				accumFraction = (int)(time - segmentNanos * resolution);
+				setTempo(micros);
+				tempoMap.addTempo(event.getTick(), micros);
+				accumTicks = tick; // by definition
+				accumNanos += segmentNanos;
+				elapsedNanos -= segmentNanos;
+				refNanos += segmentNanos;
+				tempoChanged = true;
+				publish();
+				post(TransportEventBus.TEMPO);
 			}
 		}
 	}
 	
 	// only to be called synchronously with real-time thread
-	// we increment the values so the next pump has a millisecond interval to play
+	// events at tick are due now, so the next pump plays them
 	protected void reposition(long millis, long tick) {
-		accumTicks = (long)(tick + ticksPerMilli);
-		synchronized ( milliLock ) {
-			accumMillis = millis + 1;
-			elapsedMillis = 0;
+		eventSourcesChanged();
+		accumTicks = tick;
+		accumNanos = millis * 1000000L;
+		accumFraction = 0;
+		elapsedNanos = 0;
+		loopOffset = 0L;
+		pumpedTick = tick - 1;
+		loopCount = -1;
+		refNanos = getCurrentTimeNanos();
+		publish();
+		repositioned(tick, false);
+		post(TransportEventBus.REPOSITION);
+	}
+	
+	/**
+	 * Reposition the MidiSource and start a new linear segment at tick using
+	 * the tempo and time known by the TempoMap.
+	 * Only to be called synchronously with real-time thread.
+	 * @param tick the tick to seek to
+	 */
+	protected void seek(long tick) {
+		seekSource(tick, Math.max(getCurrentTimeNanos(), flushNanos));
+		eventSourcesChanged();
+		setTempo(tempoMap.getMicrosPerQuarter(tick));
+		accumTicks = tick;
+		setAccumTime(tempoMap.tickToTime(tick));
+		elapsedNanos = 0;
+		loopOffset = 0L;
+		pumpedTick = tick - 1;
+		loopCount = -1;
+		// don't play anything before notes have been turned off
+		refNanos = Math.max(getCurrentTimeNanos(), flushNanos);
+		if ( syncReceiver != null ) {
+			refNanos = accumNanos; // our position is tied to the SyncReceiver's time
+		}
+		publish();
+		repositioned(tick, false);
+		post(TransportEventBus.REPOSITION);
+	}
+	
+	/**
+	 * Seek the MidiSource and chase controllers if we have a ChaseIndex.
+	 * Only to be called synchronously with real-time thread.
+	 * @param tick the tick to seek to
+	 * @param dueNanos the wall time at which to send chased state
+	 */
+	protected void seekSource(long tick, long dueNanos) {
+		if ( chaseIndex == null ) {
+			source.seek(tick);
+			return;
+		}
+		// seek to the preceding boundary then iterate to tick, applying events
+		long boundary = chaseIndex.getBoundary(tick);
+		source.seek(boundary);
+		MidiEvent evt;
+		int i = 0;
+		for ( MidiSource.EventSource src : eventSources() ) {
+			chaseIndex.getState(i, boundary, chaseState);
+			while ( (evt = src.peek()) != null && evt.getTick() < tick ) {
+				chaseState.apply(evt.getMessage());
+				src.next();
+			}
+			chaseSender.set(src, dueNanos / 1000L);
+			chaseState.chase(getSentState(i), chaseSender);
+			i += 1;
+		}
+	}
+	
+	// the state sent to an EventSource, for chasing
+	private ChaseIndex.State getSentState(int i) {
+		if ( i >= sentStates.length ) {
+			ChaseIndex.State[] states = new ChaseIndex.State[i + 1];
+			System.arraycopy(sentStates, 0, states, 0, sentStates.length);
+			sentStates = states;
+		}
+		if ( sentStates[i] == null ) {
+			sentStates[i] = new ChaseIndex.State();
 		}
-		refMillis = getCurrentTimeMillis();
+		return sentStates[i];
+	}
+	
+	private void sentNotesOff(boolean doControllers) {
+		for ( int i = 0; i < sentStates.length; i++ ) {
+			if ( sentStates[i] != null ) {
+				sentStates[i].notesOff(doControllers);
+			}
+		}
+	}
+	
+	/**
+	 * @return the time in nanoseconds, from the SyncReceiver if slaved
+	 */
+	protected long getCurrentTimeNanos() {
+		SyncReceiver r = syncReceiver;
+		return r == null ? System.nanoTime() : r.getTimeNanos();
+	}
+
+	// set accumNanos and accumFraction from a time in nanoseconds * resolution
+	private void setAccumTime(long time) {
+		accumNanos = Math.floorDiv(time, resolution);
+		accumFraction = (int)(time - accumNanos * resolution);
+	}
+
+	/**
+	 * Publish the current linear segment to other threads.
+	 * Only to be called synchronously with real-time thread.
+	 */
+	protected void publish() {
+		segment = new Segment(accumTicks, accumNanos, refNanos, accumFraction, tickTime,
+			resolution, bpm, running, loopOffset, currentLoop, loopNanos);
 	}
 	
-	protected long getCurrentTimeMillis() {
-		return System.nanoTime() / 1000000L;
+	/**
+	 * Only to be called synchronously with real-time thread.
+	 * @return the position in nanoseconds as at the current pump
+	 */
+	protected long getCurrentPositionNanos() {
+		return accumNanos + elapsedNanos;
+	}
+
+	/**
+	 * Convert a position, as returned by getCurrentPositionNanos(), to the
+	 * wall time it is due, using the current linear segment.
+	 * Only to be called synchronously with real-time thread.
+	 * @param positionNanos the position in nanoseconds
+	 * @return the wall time in nanoseconds
+	 */
+	protected long getPositionDueNanos(long positionNanos) {
+		return refNanos + (positionNanos - accumNanos);
 	}
 
 	protected long getCurrentTimeTicks() {
-		return (long)(accumTicks + ticksPerMilli * elapsedMillis);
+		return getTick(elapsedNanos);
+	}
+	
+	/**
+	 * @return the tick to pump until, ahead of the current tick by the lookahead
+	 */
+	protected long getTargetTick() {
+		return getTick(elapsedNanos + lookaheadNanos);
+	}
+
+	// the last tick at or before a time elapsed within the current segment
+	private long getTick(long elapsed) {
+		return TempoMap.toTick(accumTicks, accumFraction, tickTime, elapsed * resolution);
+	}
+	
+	/**
+	 * Convert a tick to the wall time it is due, using the current linear
+	 * segment, or the TempoMap for ticks before the current linear segment
+	 * which may occur after a tempo change while looking ahead.
+	 * Only to be called synchronously with real-time thread.
+	 * @param tick the tick
+	 * @return the wall time in nanoseconds
+	 */
+	protected long getDueNanos(long tick) {
+		long time;
+		if ( tick >= accumTicks ) {
+			time = TempoMap.toTime(accumTicks, accumFraction, tickTime, tick);
+		} else {
+			time = accumFraction + tempoMap.tickToTime(tick - loopOffset) -
+				tempoMap.tickToTime(accumTicks - loopOffset);
+		}
+		return refNanos - Math.floorDiv(-time, resolution); // rounded up
+	}
+	
+	/**
+	 * Return the wall time at which the next pump is due, by converting
+	 * getNextTick() to time using the current linear segment.
+	 * Subclasses which must pump at other times should return the earlier of
+	 * their own deadline and this one.
+	 * @return the nanosecond deadline or Long.MAX_VALUE if nothing is pending
+	 */
+	protected long getDueNanos() {
+		long tick = getNextTick();
+		if ( currentLoop != null && pumpedTick < currentLoop.end + loopOffset ) {
+			tick = Math.min(tick, currentLoop.end + loopOffset); // the next wrap
+		}
+		if ( tick == Long.MAX_VALUE ) return Long.MAX_VALUE;
+		return getDueNanos(Math.max(tick, accumTicks)) - lookaheadNanos;
 	}
 	
 	/**
@@ -243,22 +996,393 @@ public class MidiPlayer extends MidiRenderer
 	 * @return true if peek() on all MidiSource.Events sources returne null, false otherwise.
 	 */ 
 	protected boolean pump() {
+		long tick = seekTick.getAndSet(-1);
+		if ( tick >= 0 ) {
+			notesOff(false);
+			seek(tick);
+		}
 		MidiSource.RepositionCommand cmd = source.sync(getCurrentTimeTicks());
 		if ( cmd != null ) {
 			reposition(cmd.getMillis(), cmd.getTick());
 		}
 		// repositioning means the current tick may have changed
-		return pump(getCurrentTimeTicks());
+		long target = getTargetTick();
+		Loop l = looping ? loop : null;
+		if ( l != currentLoop ) {
+			currentLoop = l;
+			loopCount = -1;
+			if ( l != null ) {
+				loopNanos = tempoMap.tickToNanos(l.end) - tempoMap.tickToNanos(l.start);
+			}
+			publish();
+		}
+		long wrapTick;
+		boolean empty;
+		while ( true ) {
+			updateCompensation(); // outside the merge, the tempo may have changed
+			wrapTick = l != null && pumpedTick < l.end + loopOffset ?
+				l.end + loopOffset : Long.MAX_VALUE;
+			// nothing at or after the loop end, even if retargeted
+			pumpLimit = wrapTick - 1;
+			retargetTick = target;
+			empty = pump(Math.min(target, pumpLimit));
+			target = retargetTick; // at the tempo in force after the pump
+			pumpedTick = Math.min(target, pumpLimit);
+			if ( target < wrapTick ) break;
+			wrap(l, wrapTick);
+			target = getTargetTick(); // the tempo may have changed
+		}
+		// not empty if the loop end is still to come
+		return empty && (l == null || target >= l.end + loopOffset);
+	}
+	
+	/**
+	 * Recompute the target tick after a tempo change, at the new tempo.
+	 */
+	@Override
+	protected long retarget(long targetTick) {
+		if ( !tempoChanged ) return targetTick;
+		tempoChanged = false;
+		retargetTick = getTargetTick();
+		return Math.min(retargetTick, pumpLimit);
+	}
+	
+	/**
+	 * Return to the loop start at the loop end, starting a new linear segment.
+	 * Only to be called synchronously with real-time thread.
+	 * @param l the Loop
+	 * @param wrapTick the tick, including the loop offset, at which the loop end is due
+	 */
+	protected void wrap(Loop l, long wrapTick) {
+		long due = refNanos +
+			Math.floorDiv(TempoMap.toTime(accumTicks, accumFraction, tickTime, wrapTick), resolution);
+		if ( loopCount < 0 ) {
+			loopAnchorNanos = due;
+			loopCount = 0;
+		} else {
+			loopCount += 1;
+			if ( loopCount == 1 ) {
+				loopPeriodNanos = due - loopAnchorNanos;
+			}
+			long pinned = loopAnchorNanos + loopCount * loopPeriodNanos;
+			if ( Math.abs(pinned - due) < 1000000L ) {
+				due = pinned;
+			} else { // the tempo within the loop has been changed
+				loopAnchorNanos = due;
+				loopCount = 0;
+			}
+		}
+		loopNotesOff(due);
+		seekSource(l.start, due);
+		eventSourcesChanged();
+		loopOffset += l.end - l.start;
+		setTempo(tempoMap.getMicrosPerQuarter(l.start));
+		accumTicks = wrapTick;
+		setAccumTime(tempoMap.tickToTime(l.start));
+		loopNanos = tempoMap.tickToNanos(l.end) - accumNanos;
+		elapsedNanos -= due - refNanos;
+		refNanos = due;
+		publish();
+		repositioned(l.start, true);
+		post(TransportEventBus.REPOSITION);
+	}
+	
+	/**
+	 * Called when the MidiSource has been repositioned, by seek, by the
+	 * MidiSource or by a loop wrap, subsequent MidiEvents at tick being due
+	 * at tick + getLoopOffset().
+	 * Called synchronously with real-time thread if running.
+	 * @param tick the tick the MidiSource was repositioned to
+	 * @param wrapped true if by a loop wrap, when time continues seamlessly
+	 */
+	protected void repositioned(long tick, boolean wrapped) {
+	}
+	
+	/**
+	 * Only to be called synchronously with real-time thread.
+	 * @return the ticks added to MidiSource ticks by looping
+	 */
+	protected long getLoopOffset() {
+		return loopOffset;
+	}
+	
+	/**
+	 * Turn off notes which are still on at the loop end.
+	 * @param due the wall time of the loop end in nanoseconds
+	 */
+	protected void loopNotesOff(long due) {
+		long flush = Math.max(flushNanos, due) / 1000L;
+		sentNotesOff(false);
+		for ( MidiSource.EventSource src : eventSources() ) {
+			if ( lookaheadNanos > 0 && src instanceof MidiTarget.TimestampedMessageTarget ) {
+				((MidiTarget.TimestampedMessageTarget)src).notesOff(false, flush);
+			} else if ( src instanceof MidiTarget.MessageTarget ) {
+				((MidiTarget.MessageTarget)src).notesOff(false);
+			}
+		}
+	}
+	
+	/**
+	 * The loop offset is added to the ticks of every EventSource so that ticks
+	 * increase monotonically when looping, as are time offsets converted to
+	 * ticks at the current tempo. Subclasses which override this method must
+	 * add their own offsets to those of this method.
+	 */
+	@Override
+	protected long getTickOffset(MidiSource.EventSource src, int i) {
+		return loopOffset + getCompensationTicks(i);
+	}
+	
+	// the time offset of an EventSource in ticks, as last converted
+	private long getCompensationTicks(int i) {
+		long[] ticks = compTicks;
+		return i < ticks.length ? ticks[i] : 0L;
+	}
+	
+	/**
+	 * Convert the time offsets to ticks if they or the tempo have changed.
+	 * Called by pump() before merging, never during a merge, since the merge
+	 * keys include the offsets and must then be rebuilt.
+	 * Only to be called synchronously with real-time thread.
+	 */
+	private void updateCompensation() {
+		long[] micros = timeOffsets;
+		if ( micros == compMicros && microsPerQuarter == compMicrosPerQuarter ) return;
+		if ( compTicks.length < micros.length ) {
+			compTicks = new long[micros.length]; // rare
+		}
+		for ( int j = 0; j < micros.length; j++ ) {
+			// floor so advanced events are fetched no later than due
+			compTicks[j] = Math.floorDiv(micros[j] * resolution, microsPerQuarter);
+		}
+		compMicros = micros;
+		compMicrosPerQuarter = microsPerQuarter;
+		eventSourcesChanged();
+	}
+	
+	/**
+	 * Return the wall time at which a MidiEvent is due, with any time offset
+	 * applied exactly rather than as converted to ticks.
+	 * Only to be called synchronously with real-time thread.
+	 */
+	private long getDueNanos(MidiEvent evt, MidiSource.EventSource src, int idx) {
+		long tick = evt.getTick() + getTickOffset(src, idx);
+		long micros = getTimeOffset(idx);
+		if ( micros == 0 ) return getDueNanos(tick);
+		return getDueNanos(tick - getCompensationTicks(idx)) + micros * 1000L;
+	}
+	
+	/**
+	 * Sends chased state to an EventSource, reusing a single MidiMessage.
+	 */
+	private class ChaseSender implements ChaseIndex.Sender
+	{
+		private ShortMessage msg = new ShortMessage();
+		private MidiSource.EventSource src;
+		private long timestamp;
+		
+		public void set(MidiSource.EventSource src, long timestampMicros) {
+			this.src = src;
+			timestamp = timestampMicros;
+		}
+		
+		public void send(int command, int channel, int data1, int data2) {
+			try {
+				msg.setMessage(command, channel, data1, data2);
+			} catch ( InvalidMidiDataException imde ) {
+				return;
+			}
+			if ( lookaheadNanos > 0 && src instanceof MidiTarget.TimestampedMessageTarget ) {
+				((MidiTarget.TimestampedMessageTarget)src).transport(msg, timestamp);
+			} else if ( src instanceof MidiTarget.MessageTarget ) {
+				((MidiTarget.MessageTarget)src).transport(msg);
+			}
+		}
+	}
+	
+	/**
+	 * Immutable loop points.
+	 */
+	private static class Loop
+	{
+		final long start, end;
+		
+		Loop(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+	
+	/**
+	 * An immutable linear segment, from which the position at any time within
+	 * the segment may be calculated.
+	 */
+	private static class Segment
+	{
+		private final long tick;			// tick at start of segment
+		private final long nanos;			// position at start of segment
+		private final long ref;				// wall time at start of segment
+		private final int fraction;			// of a nanosecond, * resolution
+		private final long tickTime;		// nanoseconds per tick * resolution
+		private final int resolution;
+		private final float bpm;
+		private final boolean running;
+		private final long offset;			// loop offset
+		private final Loop loop;			// null if not looping
+		private final long loopNanos;		// duration of loop in the MidiSource
+		
+		public Segment(long tick, long nanos, long ref, int fraction, long tickTime, int resolution,
+				float bpm, boolean running, long offset, Loop loop, long loopNanos) {
+			this.tick = tick;
+			this.nanos = nanos;
+			this.ref = ref;
+			this.fraction = fraction;
+			this.tickTime = tickTime;
+			this.resolution = resolution;
+			this.bpm = bpm;
+			this.running = running;
+			this.offset = offset;
+			this.loop = loop;
+			this.loopNanos = loopNanos;
+		}
+		
+		public long getElapsedNanos(long now) {
+			return running ? now - ref : 0L;
+		}
+		
+		public long getTick(long elapsed) {
+			long t = getSegmentTick(elapsed) - offset;
+			return loop == null ? t : t + getWraps(elapsed) * (loop.end - loop.start);
+		}
+		
+		public long getMillis(long elapsed) {
+			return (nanos + elapsed + getWraps(elapsed) * loopNanos) / 1000000L;
+		}
+		
+		// the wall time may be outside the segment if a wrap is imminent or
+		// has been pumped early due to the lookahead
+		private int getWraps(long elapsed) {
+			if ( loop == null ) return 0;
+			long t = getSegmentTick(elapsed) - offset;
+			if ( t >= loop.end && tick - offset < loop.end ) return -1;
+			if ( t < loop.start && offset > 0 ) return 1;
+			return 0;
+		}
+
+		private long getSegmentTick(long elapsed) {
+			return TempoMap.toTick(tick, fraction, tickTime, elapsed * resolution);
+		}
+	}
+	
+	/**
+	 * An immutable snapshot of the transport state.
+	 * @author st
+	 */
+	public static class Snapshot
+	{
+		private final long tick;
+		private final long millis;
+		private final float bpm;
+		private final boolean running;
+		
+		public Snapshot(long tick, long millis, float bpm, boolean running) {
+			this.tick = tick;
+			this.millis = millis;
+			this.bpm = bpm;
+			this.running = running;
+		}
+		
+		/**
+		 * @return the tick position in the MidiSource
+		 */
+		public long getTickPosition() { return tick; }
+		
+		/**
+		 * @return the millisecond position in the MidiSource
+		 */
+		public long getMillisecondPosition() { return millis; }
+		
+		/**
+		 * @return the tempo in beats per minute
+		 */
+		public float getBeatsPerMinute() { return bpm; }
+		
+		/**
+		 * @return true if playing (or stopping), false if stopped
+		 */
+		public boolean isRunning() { return running; }
+	}
+	
+	// called by the real-time thread before the first pump
+	void started() {
+		metrics.setEventSourceCount(eventSources().size());
+		// if slaved our position is tied to the SyncReceiver's time
+		refNanos = syncReceiver != null ? accumNanos : getCurrentTimeNanos();
+		deadline = -1L;
+		publish();
+	}
+	
+	// called by the real-time thread to pump, return true if complete
+	boolean service() {
+		SyncReceiver r = syncReceiver;
+		if ( r != null ) {
+			if ( r.isTimedOut() ) stop();
+			long tick = r.takeReposition();
+			if ( tick >= 0 ) seekTick.set(tick);
+		}
+		long now = getCurrentTimeNanos();
+		elapsedNanos = now - refNanos;
+		timing = instrumented;
+		if ( timing ) {
+			metrics.pumpStarted(deadline < 0 ? -1L : Math.max(0L, now - deadline));
+		}
+		boolean complete = pump() && stopOnEmpty;
+		if ( timing ) {
+			metrics.pumpFinished(getCurrentTimeNanos() - now);
+		}
+		return complete;
+	}
+	
+	// called by the real-time thread after a pump to return the time of the
+	// next pump, bounded so the MidiSource is still synced
+	long schedule() {
+		long now = getCurrentTimeNanos();
+		long due = getDueNanos();
+		// the next pump will find we're empty so stop promptly
+		if ( due == Long.MAX_VALUE && stopOnEmpty ) {
+			deadline = -1L;
+			return now;
+		}
+		long limit = now + (due == Long.MAX_VALUE ? idleParkNanos : maxParkNanos);
+		if ( due > limit ) {
+			deadline = -1L;
+			return limit;
+		}
+		deadline = due;
+		return due;
+	}
+	
+	// called by the real-time thread after the last pump
+	void finished() {
+		timing = false;
+		// restart from the next tick not already transported
+		long tick = getTargetTick()+1;
+		setAccumTime(TempoMap.toTime(accumTicks, accumNanos * resolution + accumFraction, tickTime, tick));
+		accumTicks = tick;
+		elapsedNanos = 0;
+		stopped(); // turns off active notes, resets some controllers
 	}
 	
 	/**
 	 * PlayEngine encapsulates the real-time thread to avoid run() being public in MidiPlayer.
+	 * Rather than polling it parks until the next deadline, then busy waits for
+	 * the final spinNanos, so timing is not limited to millisecond resolution.
 	 * @author st
 	 *
 	 */
 	private class PlayEngine implements Runnable 
 	{
-		private Thread thread;
+		private volatile Thread thread;
 
 		PlayEngine() {
 			// nearly MAX_PRIORITY
@@ -267,33 +1391,44 @@ public class MidiPlayer extends MidiRenderer
 			thread = new Thread(this);
 			thread.setName("Toot MidiPlayer - "+source.getName());
 			thread.setPriority(priority);
-			refMillis = getCurrentTimeMillis(); // prevent badval on 1st getTickPosition()
 			thread.start();
 		}
 		
 		public void stop() {
-			thread = null;			
+			Thread t = thread;
+			thread = null;
+			LockSupport.unpark(t); // stop promptly rather than at the next deadline
 		}
 		
 		public void run() {
-			refMillis = getCurrentTimeMillis();
+			started();
 			Thread thisThread = Thread.currentThread();
 			boolean complete = false;
 			while ( (thread == thisThread) && !complete ) {
-				elapsedMillis = getCurrentTimeMillis() - refMillis;
-				complete = pump() && stopOnEmpty;
-				try {
-					Thread.sleep(1);
-				} catch (InterruptedException ie) {
-					// ignore
-				}
+				complete = service();
+				if ( !complete ) await(thisThread, schedule());
 			}
-			accumTicks = getCurrentTimeTicks()+1; // restart from next tick
-			synchronized ( milliLock ) {
-				accumMillis += elapsedMillis;
-				elapsedMillis = 0;
+			finished();
+		}
+		
+		// park until due, then busy wait for the final spinNanos
+		private void await(Thread thisThread, long due) {
+			long remaining;
+			SyncReceiver r;
+			while ( thread == thisThread ) {
+				remaining = due - getCurrentTimeNanos();
+				if ( remaining <= 0 ) break;
+				r = syncReceiver;
+				if ( r != null ) {
+					// if slaved remaining is in our time, not wall time
+					remaining = r.toWallNanos(remaining);
+				}
+				if ( remaining > spinNanos ) {
+					LockSupport.parkNanos(remaining - spinNanos);
+				} else {
+					Thread.yield();
+				}
 			}
-			stopped(); // turns off active notes, resets some controllers
 		}
 	}
 }
@@ -19,6 +19,11 @@ import javax.sound.midi.MidiMessage;
 public abstract class MidiRenderer extends Observable
 {
 	protected MidiSource source;
+	
+	private long nextTick = Long.MAX_VALUE; // earliest pending tick after last pump
+	
+	private EventSourceQueue queue;	// null unless merging
+	private boolean retargeting = false;
 
 	public void setMidiSource(MidiSource source) {
 		if ( source == null ) {
@@ -26,6 +31,83 @@ public abstract class MidiRenderer extends Observable
 		}
 		this.source = source;
 		source.returnToZero(); // just in case it isn't
+		eventSourcesChanged();
+	}
+	
+	/**
+	 * Release the MidiSource, and any EventSources being merged, so that a
+	 * MidiRenderer which is retained for reuse doesn't keep them reachable.
+	 * setMidiSource() must be called before pumping again.
+	 */
+	protected void releaseMidiSource() {
+		source = null;
+		if ( queue != null ) {
+			queue.clear();
+		}
+	}
+	
+	/**
+	 * Set whether pump() merges EventSources using a heap keyed on the tick of
+	 * each EventSource's next MidiEvent. Each pump then costs O(e log k) for
+	 * e due events and k EventSources, rather than peeking all k EventSources,
+	 * which is worthwhile when there are many EventSources.
+	 * 
+	 * The heap is rebuilt when eventSources() returns a different List or a List
+	 * of different size, otherwise eventSourcesChanged() must be called, so
+	 * implementations should return the same List until it is mutated. Idle
+	 * EventSources are not peeked, so an event inserted before the next event
+	 * of an idle EventSource will be late, and an exhausted EventSource is not
+	 * peeked again until the heap is rebuilt. So merging is best suited to
+	 * MidiSources which are not edited while being rendered.
+	 * @param merging true to merge using a heap, false to peek every EventSource
+	 */
+	public void setMerging(boolean merging) {
+		queue = merging ? new EventSourceQueue() : null;
+		if ( !merging ) {
+			retargeting = false;
+		}
+	}
+	
+	/**
+	 * @return whether pump() merges EventSources using a heap
+	 */
+	public boolean isMerging() {
+		return queue != null;
+	}
+	
+	/**
+	 * Set whether pump() recomputes its target tick by retarget() after each
+	 * MidiEvent from the first EventSource is checked, so that MidiEvents
+	 * after a tempo change within a pump are pumped until the tick due at
+	 * the new tempo rather than at the old one, however dense the tempo
+	 * changes are. This requires MidiEvents to be pumped in tick order across
+	 * EventSources, so retargeting enables merging, see setMerging(), and
+	 * disabling merging disables retargeting.
+	 * @param retarget true to recompute the target tick, false not to
+	 */
+	public void setRetargeting(boolean retarget) {
+		if ( retarget && queue == null ) {
+			setMerging(true);
+		}
+		retargeting = retarget;
+	}
+	
+	/**
+	 * @return whether pump() recomputes its target tick after checking
+	 */
+	public boolean isRetargeting() {
+		return retargeting;
+	}
+	
+	/**
+	 * Called when the List of EventSources, or their positions, have been
+	 * changed in a way that may not be apparent from the List returned by
+	 * eventSources(), e.g. after repositioning.
+	 */
+	protected void eventSourcesChanged() {
+		if ( queue != null ) {
+			queue.invalidate();
+		}
 	}
 	
 	/**
@@ -34,27 +116,98 @@ public abstract class MidiRenderer extends Observable
 	 * @return true if every peek() returned null, false otherwise
 	 */
 	protected boolean pump(long targetTick) {
+		if ( queue != null ) return merge(targetTick);
 		MidiEvent evt;
 		int srcIdx = 0;
 		boolean empty = true;
-		long offsetTick;
+		long offset;
+		long earliestTick = Long.MAX_VALUE;
 		for ( MidiSource.EventSource src : eventSources() ) {
 			evt = src.peek();
-			if ( evt == null ) continue;
+			if ( evt == null ) {
+				srcIdx += 1;
+				continue;
+			}
 			empty = false;
-			offsetTick = targetTick - getTickOffset(src, srcIdx);
-			while ( evt.getTick() <= offsetTick ) {
-				transport(evt.getMessage(), src, srcIdx);
+			offset = getTickOffset(src, srcIdx);
+			while ( evt.getTick() <= targetTick - offset ) {
+				transport(evt, src, srcIdx);
 				if ( srcIdx == 0 ) check(evt);
 				src.next();
 				evt = src.peek();
 				if ( evt == null ) break;
 			}
+			if ( evt != null && evt.getTick() + offset < earliestTick ) {
+				earliestTick = evt.getTick() + offset;
+			}
 			srcIdx += 1;
 		}
+		nextTick = earliestTick;
 		return empty;
 	}
 	
+	/**
+	 * Pump MidiMessages as they become due, in tick order across EventSources.
+	 * @param targetTick the tick to pump until.
+	 * @return true if every EventSource is exhausted, false otherwise
+	 */
+	private boolean merge(long targetTick) {
+		List<MidiSource.EventSource> list = eventSources();
+		if ( queue.isStale(list) ) {
+			queue.rebuild(list, this);
+		}
+		MidiSource.EventSource src;
+		MidiEvent evt;
+		int srcIdx;
+		long tick;
+		while ( !queue.isEmpty() ) {
+			srcIdx = queue.peekIndex();
+			src = queue.peekSource();
+			evt = src.peek();
+			if ( evt == null ) {
+				queue.remove();
+				continue;
+			}
+			tick = evt.getTick() + getTickOffset(src, srcIdx);
+			if ( tick != queue.peekKey() ) { // edited since we last peeked
+				queue.update(tick);
+				continue;
+			}
+			if ( tick > targetTick ) break;
+			transport(evt, src, srcIdx);
+			if ( srcIdx == 0 ) {
+				check(evt);
+				if ( retargeting ) {
+					targetTick = retarget(targetTick);
+				}
+			}
+			src.next();
+			evt = src.peek();
+			if ( evt == null ) {
+				queue.remove();
+			} else {
+				queue.update(evt.getTick() + getTickOffset(src, srcIdx));
+			}
+		}
+		if ( queue.isEmpty() ) {
+			nextTick = Long.MAX_VALUE;
+			return true;
+		}
+		nextTick = queue.peekKey();
+		return false;
+	}
+	
+	/**
+	 * Return the earliest target tick at which the last pump() left an event
+	 * pending, with tick offsets applied, so that a real-time client may
+	 * schedule its next pump rather than poll.
+	 * Note that an EventSource may produce an earlier event at any time.
+	 * @return the next due tick or Long.MAX_VALUE if nothing was pending
+	 */
+	protected long getNextTick() {
+		return nextTick;
+	}
+	
 	/**
 	 * Provide the List of EventSources.
 	 * This may be dynamic, different per call, or static, never changing, depending
@@ -63,6 +216,18 @@ public abstract class MidiRenderer extends Observable
 	 */
 	protected abstract List<MidiSource.EventSource> eventSources();
 	
+	/**
+	 * Transport a MidiEvent from an EventSource at index i in the List.
+	 * The default implementation transports its MidiMessage, subclasses may
+	 * override this method if they also require the tick.
+	 * @param evt the MidiEvent to transport
+	 * @param src the EventSource which is the source of the MidiEvent
+	 * @param i the index of the EventSource within the List
+	 */
+	protected void transport(MidiEvent evt, MidiSource.EventSource src, int i) {
+		transport(evt.getMessage(), src, i);
+	}
+	
 	/**
 	 * Transport a MidiMessage from an EventSource at index i in the List
 	 * @param msg the MidiMessage to transport
@@ -81,6 +246,17 @@ public abstract class MidiRenderer extends Observable
 		// default null implementation
 	}
 	
+	/**
+	 * Return the target tick to continue pumping until, after check() when
+	 * retargeting, e.g. as recomputed at a new tempo. Must not return a tick
+	 * before the MidiEvent just checked.
+	 * @param targetTick the current target tick
+	 * @return the new target tick
+	 */
+	protected long retarget(long targetTick) {
+		return targetTick;
+	}
+	
 	/**
 	 * Return the offset, in ticks, that the EventSource should be delayed/advanced by.
 	 * Typically a 'sequencer' may need to delay messages sent to a hardware MIDI port
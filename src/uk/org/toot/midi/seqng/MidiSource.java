@@ -86,6 +86,27 @@ public abstract class MidiSource extends Observable
 	 */
 	public abstract void returnToZero();
 	
+	/**
+	 * Return whether seek() is supported. The default is false.
+	 * @return true if seek() is supported
+	 */
+	public boolean isSeekable() {
+		return false;
+	}
+	
+	/**
+	 * Should only be called by the client, synchronously, like returnToZero().
+	 * Reposition every EventSource so that next() returns its first MidiEvent
+	 * at or after tick.
+	 * Unlike repositioning via sync() the client's tick will subsequently be
+	 * lower if seeking backwards.
+	 * @param tick the tick to seek to
+	 * @throws UnsupportedOperationException if isSeekable() returns false
+	 */
+	public void seek(long tick) {
+		throw new UnsupportedOperationException(getName()+" can't seek");
+	}
+	
 	/**
 	 * Should only be called by the client.
 	 * This method is called synchronously by the client, each time before it obtains
@@ -117,6 +138,9 @@ public abstract class MidiSource extends Observable
 	 * termination, another MidiEvent may be created at ant time. Also, if there
 	 * is a next MidiEvent we want to know what it is in order to examine its tick.
 	 * MidiEvent tick values should monotonically increase even if repositioning or looping.
+	 * An implementation may reuse the MidiEvent and MidiMessage it returns, so they
+	 * are only valid until the next call of peek() or next() and clients which retain
+	 * them should clone the MidiMessage.
 	 * @author st
 	 */
 	public interface EventSource
@@ -6,7 +6,6 @@
 package uk.org.toot.midi.seqng;
 
 import static uk.org.toot.midi.message.ChannelMsg.CONTROL_CHANGE;
-import static uk.org.toot.midi.message.ChannelMsg.createChannel;
 import static uk.org.toot.midi.misc.Controller.ALL_CONTROLLERS_OFF;
 import static uk.org.toot.midi.misc.Controller.ALL_NOTES_OFF;
 import static uk.org.toot.midi.misc.Controller.HOLD_PEDAL;
@@ -15,8 +14,6 @@ import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 
-import uk.org.toot.midi.message.NoteMsg;
-
 /**
  * MidiTarget extends MidiSource to provide a 1:1 mapping between EventSources and
  * MessageTargets. This allows the source of MidiEvents to also control the destination
@@ -38,17 +35,53 @@ public abstract class MidiTarget extends MidiSource
 		public void notesOff(boolean doControllers);
 	}
 
+	/**
+	 * A TimestampedMessageTarget may be passed MidiMessages ahead of time, with
+	 * the time they are due, so that it may schedule them precisely, e.g. with
+	 * javax.sound.midi.Receiver.send(msg, timeStamp).
+	 * Timestamps are in microseconds on the System.nanoTime() timescale, i.e.
+	 * System.nanoTime() / 1000, so a target must convert them to its own clock.
+	 * The MessageTarget methods are still used for untimed messages.
+	 * MidiMessages may be reused by their EventSource or sender as soon as
+	 * transport() returns, so a target which queues them until they are due
+	 * must clone them, as AbstractTimestampedMessageTarget does if constructed
+	 * to clone.
+	 */
+	public interface TimestampedMessageTarget extends MessageTarget
+	{
+		/**
+		 * @param msg the MidiMessage
+		 * @param timestampMicros the time the MidiMessage is due
+		 */
+		public void transport(MidiMessage msg, long timestampMicros);
+
+		/**
+		 * Called for stop or mute, with a timestamp no earlier than that of any
+		 * MidiMessage already transported, so that notes are not turned on after
+		 * they have been turned off.
+		 * @param doControllers true for stop, false for mute
+		 * @param timestampMicros the time notes should be turned off
+		 */
+		public void notesOff(boolean doControllers, long timestampMicros);
+	}
+
 	/**
 	 * This class concretizes MessageTarget and encapsulates all handling of
 	 * its NoteOnCache.
 	 * transport() is implemented to track active notes in the NoteOnCache.
 	 * notesOff() is implemented to turn off notes from the NoteOnCache.
 	 * transportImpl() should be implemented by subclasses.
+	 * notesOff() reuses a single MidiMessage so that it does not allocate on the
+	 * real-time thread, so untimed MidiMessages passed to transportImpl() must
+	 * be cloned if they are retained.
 	 * @author st
 	 */
 	public abstract static class AbstractMessageTarget implements MessageTarget, EventSource
 	{
 		private NoteOnCache noteOnCache;
+		private ShortMessage offMessage = new ShortMessage();	// reused by notesOff()
+		private int dirtyChannels = 0xFFFF; // channels used since last notesOff()
+		private int controllerChannels = 0xFFFF; // used since last notesOff(true)
 		
 		public AbstractMessageTarget() {
 			noteOnCache = new NoteOnCache();
@@ -59,6 +92,10 @@ public abstract class MidiTarget extends MidiSource
 			int msgStatus = msg.getStatus();
 			int chan = msgStatus & 0x0F;
 			int note;
+			if ( msgStatus < 0xF0 ) {
+				dirtyChannels |= 1 << chan;
+				controllerChannels |= 1 << chan;
+			}
 			switch ( msgStatus & 0xF0 ) {
 			case ShortMessage.NOTE_OFF:
 				note = ((ShortMessage) msg).getData1() & 0x7F;
@@ -78,49 +115,115 @@ public abstract class MidiTarget extends MidiSource
 			}
 		}
 
+		/**
+		 * Turn off active notes on channels that have been used since the last
+		 * call, and reset controllers on channels that have been used since
+		 * the last call which did, so the cost is proportional to the number
+		 * of active notes and used channels.
+		 */
 		public void notesOff(boolean doControllers) {
+			int channels = dirtyChannels;
+			dirtyChannels = 0;
+			if ( doControllers ) {
+				channels |= controllerChannels;
+				controllerChannels = 0;
+			}
 			for ( int ch = 0; ch < 16; ch++ ) {
-				int channelMask = (1 << ch);
-				for ( int i = 0; i < 128; i++ ) {
-					if ( noteOnCache.testAndClear(i, channelMask) ) {
-						// send note on with velocity 0
-						try {
-							transportImpl(NoteMsg.on(ch, i, 0));
-						} catch ( InvalidMidiDataException imda ) {					
-						}
-					}
+				if ( (channels & (1 << ch)) == 0 ) continue;
+				for ( int i = noteOnCache.nextNote(ch, 0); i >= 0; i = noteOnCache.nextNote(ch, i + 1) ) {
+					// send note on with velocity 0
+					send(ShortMessage.NOTE_ON, ch, i, 0);
 				}
+				noteOnCache.clear(ch);
 				/* all notes off */
-				try {
-					transportImpl(createChannel(CONTROL_CHANGE, ch, ALL_NOTES_OFF));
-				} catch ( InvalidMidiDataException imda ) {				
-				}
+				send(CONTROL_CHANGE, ch, ALL_NOTES_OFF, 0);
 				/* sustain off */
-				try {
-					transportImpl(createChannel(CONTROL_CHANGE, ch, HOLD_PEDAL, 0));
-				} catch ( InvalidMidiDataException imda ) {				
-				}
+				send(CONTROL_CHANGE, ch, HOLD_PEDAL, 0);
 				if ( doControllers ) {
 					/* reset all controllers */
-					try {
-						transportImpl(createChannel(CONTROL_CHANGE, ch, ALL_CONTROLLERS_OFF));
-					} catch ( InvalidMidiDataException imda ) {					
-					}
+					send(CONTROL_CHANGE, ch, ALL_CONTROLLERS_OFF, 0);
 				}
 			}		
 		}
+		
+		private void send(int command, int ch, int data1, int data2) {
+			try {
+				offMessage.setMessage(command, ch, data1, data2);
+				transportImpl(offMessage);
+			} catch ( InvalidMidiDataException imda ) {
+			}
+		}
 
 		public abstract void transportImpl(MidiMessage msg);
 	}
+
+	/**
+	 * This class extends AbstractMessageTarget to support timestamps.
+	 * transportImpl(msg, timestampMicros) should be implemented by subclasses,
+	 * timestampMicros is -1 for untimed MidiMessages, as for Receiver.send().
+	 * A subclass which passes timed MidiMessages to a Receiver which may queue
+	 * them until they are due should be constructed to clone them, since the
+	 * MidiMessages of EventSources and of notesOff() are reused. A subclass
+	 * which sends them immediately need not, so timed MidiMessages are not
+	 * allocated on the real-time thread.
+	 * @author st
+	 */
+	public abstract static class AbstractTimestampedMessageTarget
+		extends AbstractMessageTarget implements TimestampedMessageTarget
+	{
+		private long timestamp = -1L;
+		private final boolean cloning;
+
+		public AbstractTimestampedMessageTarget() {
+			this(false);
+		}
+
+		/**
+		 * @param cloning true to clone timed MidiMessages before they are
+		 * passed to transportImpl(), for a Receiver which queues them
+		 */
+		public AbstractTimestampedMessageTarget(boolean cloning) {
+			this.cloning = cloning;
+		}
+
+		public void transport(MidiMessage msg) {
+			transport(msg, -1L);
+		}
+
+		public void transport(MidiMessage msg, long timestampMicros) {
+			timestamp = timestampMicros;
+			super.transport(msg);
+		}
+
+		public void notesOff(boolean doControllers) {
+			notesOff(doControllers, -1L);
+		}
+
+		public void notesOff(boolean doControllers, long timestampMicros) {
+			timestamp = timestampMicros;
+			super.notesOff(doControllers);
+		}
+
+		public final void transportImpl(MidiMessage msg) {
+			if ( cloning && timestamp >= 0 ) {
+				msg = (MidiMessage)msg.clone();
+			}
+			transportImpl(msg, timestamp);
+		}
+
+		public abstract void transportImpl(MidiMessage msg, long timestampMicros);
+	}
 		
 	/**
 	 * A NoteOnCache is used for each MidiMessage destination in order that
 	 * active note ONs may be turned OFF on a stop condition or when muted.
+	 * Each channel has a 128 bit set of active notes held in two longs so that
+	 * active notes may be found without testing every note.
 	 * @author st
 	 */
 	public static class NoteOnCache
 	{
-		private int[] cache = new int[128]; // bit-mask of notes that are currently on
+		private long[] cache = new long[32]; // low and high bit-sets of notes that are on, per channel
 
 		/**
 		 * Call for note ON with velocity > 0
@@ -128,7 +231,7 @@ public abstract class MidiTarget extends MidiSource
 		 * @param ch the channel
 		 */
 		public void set(int note, int ch) {
-			cache[note] |= 1 << ch;
+			cache[(ch << 1) | (note >> 6)] |= 1L << note;
 		}
 		
 		/**
@@ -137,7 +240,7 @@ public abstract class MidiTarget extends MidiSource
 		 * @param ch the channel
 		 */
 		public void clear(int note, int ch) {
-			cache[note] &= (0xFFFF ^ (1 << ch));	
+			cache[(ch << 1) | (note >> 6)] &= ~(1L << note);	
 		}
 		
 		/**
@@ -149,20 +252,50 @@ public abstract class MidiTarget extends MidiSource
 		 * @return true if pitch is active on channel
 		 */
 		public boolean testAndClear(int i, int ch) {
-			int channelMask = (1 << ch);
-			if ((cache[i] & channelMask) != 0) {
-				cache[i] ^= channelMask;
+			int idx = (ch << 1) | (i >> 6);
+			long mask = 1L << i;
+			if ((cache[idx] & mask) != 0) {
+				cache[idx] ^= mask;
 				return true;
 			}
 			return false;
 		}
 		
+		/**
+		 * Return the lowest active pitch on a channel, starting from a pitch.
+		 * @param ch the channel
+		 * @param from the pitch to start from
+		 * @return the active pitch or -1 if there are none
+		 */
+		public int nextNote(int ch, int from) {
+			long bits;
+			if ( from < 64 ) {
+				bits = cache[ch << 1] & (-1L << from);
+				if ( bits != 0 ) return Long.numberOfTrailingZeros(bits);
+				from = 64;
+			}
+			if ( from < 128 ) {
+				bits = cache[(ch << 1) | 1] & (-1L << from);
+				if ( bits != 0 ) return 64 + Long.numberOfTrailingZeros(bits);
+			}
+			return -1;
+		}
+		
+		/**
+		 * Clear a channel
+		 * @param ch the channel
+		 */
+		public void clear(int ch) {
+			cache[ch << 1] = 0L;
+			cache[(ch << 1) | 1] = 0L;
+		}
+		
 		/**
 		 * Clear the entire cache
 		 */
 		public void clear() {
-			for ( int i = 0; i < 128; i++ ) {
-				cache[i] = 0;
+			for ( int i = 0; i < cache.length; i++ ) {
+				cache[i] = 0L;
 			}
 		}
 	}
@@ -0,0 +1,294 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.getString;
+import static uk.org.toot.midi.message.MetaMsg.TRACK_NAME;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * This class is an implementation of MidiSource backed by primitive arrays,
+ * copied from a Sequence, which is then no longer required.
+ *
+ * Each track is a pair of parallel arrays, the ticks and the packed events.
+ * A short message is packed into an int as status | data1 << 8 | data2 << 16.
+ * Meta and SysEx messages are stored in a byte pool shared by all tracks and
+ * are packed as the complement of their index in the table of pool offsets.
+ * This uses a small fraction of the memory of MidiEvents and their MidiMessages
+ * and iteration is cache friendly.
+ *
+ * Each EventSource returns a single reusable MidiEvent, so iterating short
+ * messages does not allocate. The MidiEvent and its MidiMessage are only valid
+ * until the next call of peek() or next() on the same EventSource, so they must
+ * be cloned if they are to be retained. Meta and SysEx messages are decoded
+ * from the byte pool when first iterated and the decoded MidiMessage is then
+ * reused, so iterating them again, after a seek or loop wrap, does not
+ * allocate either. They must not be modified.
+ *
+ * This class is immutable and so is not editable while playing.
+ * @author st
+ *
+ */
+public class PackedMidiSource extends MidiSource
+{
+	private String name;
+	private int resolution;
+
+	private byte[] pool;		// encoded meta and sysex messages
+	private int[] offsets;		// start of each message in pool, plus end
+	private MidiMessage[] decoded;	// each message in pool, null until decoded
+
+	private List<PackedEventSource> eventSources =
+		new java.util.ArrayList<PackedEventSource>();
+
+	private List<EventSource> unmodifiableEventSources =
+		Collections.<EventSource>unmodifiableList(eventSources);
+
+	public PackedMidiSource(Sequence sequence) {
+		this("sequence", sequence);
+	}
+
+	public PackedMidiSource(String name, Sequence sequence) {
+		if ( sequence.getDivisionType() != Sequence.PPQ ) {
+			throw new IllegalArgumentException("Sequence division type must be PPQ");
+		}
+		this.name = name;
+		resolution = sequence.getResolution();
+		Track[] tracks = sequence.getTracks();
+		// size the pool exactly in a first pass
+		int nblobs = 0;
+		int poolSize = 0;
+		for ( Track track : tracks ) {
+			for ( int i = 0; i < track.size(); i++ ) {
+				MidiMessage msg = track.get(i).getMessage();
+				if ( !(msg instanceof ShortMessage) ) {
+					nblobs += 1;
+					poolSize += msg.getLength();
+				}
+			}
+		}
+		pool = new byte[poolSize];
+		offsets = new int[nblobs + 1];
+		decoded = new MidiMessage[nblobs];
+		int blob = 0;
+		for ( int t = 0; t < tracks.length; t++ ) {
+			Track track = tracks[t];
+			int size = track.size();
+			long[] ticks = new long[size];
+			int[] events = new int[size];
+			for ( int i = 0; i < size; i++ ) {
+				MidiEvent evt = track.get(i);
+				MidiMessage msg = evt.getMessage();
+				ticks[i] = evt.getTick();
+				if ( msg instanceof ShortMessage ) {
+					ShortMessage smsg = (ShortMessage)msg;
+					events[i] = smsg.getStatus() | smsg.getData1() << 8 | smsg.getData2() << 16;
+				} else {
+					int offset = offsets[blob];
+					System.arraycopy(msg.getMessage(), 0, pool, offset, msg.getLength());
+					offsets[blob + 1] = offset + msg.getLength();
+					events[i] = ~blob;
+					blob += 1;
+				}
+			}
+			eventSources.add(new PackedEventSource(t, ticks, events));
+		}
+	}
+
+	@Override
+	public List<EventSource> getEventSources() {
+		return unmodifiableEventSources;
+	}
+
+	@Override
+	public int getResolution() {
+		return resolution;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	public void returnToZero() {
+		for ( PackedEventSource src : eventSources ) {
+			src.seek(0L);
+		}
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	@Override
+	public void seek(long tick) {
+		for ( PackedEventSource src : eventSources ) {
+			src.seek(tick);
+		}
+	}
+
+	/**
+	 * Return a meta or sysex message from the pool, decoding it only once.
+	 * @param blob the index of the message in the table of offsets
+	 * @return the shared MidiMessage, not to be modified
+	 */
+	protected MidiMessage getMessage(int blob) throws InvalidMidiDataException {
+		MidiMessage msg = decoded[blob];
+		if ( msg == null ) {
+			msg = decode(blob);
+			decoded[blob] = msg;
+		}
+		return msg;
+	}
+
+	/**
+	 * Decode a meta or sysex message from the pool.
+	 * @param blob the index of the message in the table of offsets
+	 * @return a new MidiMessage
+	 */
+	protected MidiMessage decode(int blob) throws InvalidMidiDataException {
+		int offset = offsets[blob];
+		int length = offsets[blob + 1] - offset;
+		int status = pool[offset] & 0xFF;
+		if ( status == MetaMessage.META ) {
+			int type = pool[offset + 1] & 0xFF;
+			// skip the variable length quantity encoded length
+			int p = offset + 2;
+			while ( (pool[p] & 0x80) != 0 ) p++;
+			p++;
+			byte[] data = new byte[offset + length - p];
+			System.arraycopy(pool, p, data, 0, data.length);
+			MetaMessage meta = new MetaMessage();
+			meta.setMessage(type, data, data.length);
+			return meta;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(pool, offset, data, 0, length);
+		SysexMessage sysex = new SysexMessage();
+		sysex.setMessage(data, length);
+		return sysex;
+	}
+
+	/**
+	 * A reusable MidiEvent whose MidiMessage may be replaced.
+	 */
+	private static class PackedEvent extends MidiEvent
+	{
+		private MidiMessage message;
+
+		public PackedEvent(MidiMessage message) {
+			super(message, 0L);
+			this.message = message;
+		}
+
+		@Override
+		public MidiMessage getMessage() {
+			return message;
+		}
+	}
+
+	protected class PackedEventSource implements EventSource
+	{
+		private long[] ticks;
+		private int[] events;
+		private String name;
+		private int index = 0;
+
+		private ShortMessage shortMessage = new ShortMessage();
+		private PackedEvent event = new PackedEvent(shortMessage);
+		private int eventIndex = -1;	// the index event currently views
+
+		public PackedEventSource(int trk, long[] ticks, int[] events) {
+			this.ticks = ticks;
+			this.events = events;
+			String aname = getMetaName(TRACK_NAME);
+			name = aname == null ? "Player: Track "+(1+trk) : "Player: "+aname;
+		}
+
+		public MidiEvent peek() {
+			if ( index >= ticks.length ) return null;
+			return view(index);
+		}
+
+		public MidiEvent next() {
+			if ( index >= ticks.length ) return null;
+			return view(index++);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// binary search for the first event at or after tick
+		public void seek(long tick) {
+			int lo = 0;
+			int hi = ticks.length;
+			int mid;
+			while ( lo < hi ) {
+				mid = (lo + hi) >>> 1;
+				if ( ticks[mid] < tick ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			index = lo;
+		}
+
+		protected MidiEvent view(int i) {
+			if ( i == eventIndex ) return event;
+			int packed = events[i];
+			try {
+				if ( packed >= 0 ) {
+					shortMessage.setMessage(packed & 0xFF, (packed >> 8) & 0xFF, (packed >> 16) & 0xFF);
+					event.message = shortMessage;
+				} else {
+					event.message = getMessage(~packed);
+				}
+			} catch ( InvalidMidiDataException imde ) {
+				// can't happen, the data was valid when packed
+				throw new IllegalStateException(imde);
+			}
+			event.setTick(ticks[i]);
+			eventIndex = i;
+			return event;
+		}
+
+		protected String getMetaName(int type) {
+			for ( int i = 0; i < events.length; i++ ) {
+				int packed = events[i];
+				if ( packed >= 0 ) continue;
+				int offset = offsets[~packed];
+				if ( (pool[offset] & 0xFF) == MetaMessage.META && (pool[offset + 1] & 0xFF) == type ) {
+					try {
+						return getString(getMessage(~packed));
+					} catch ( InvalidMidiDataException imde ) {
+						return null;
+					}
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,356 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * PlayerMetrics records the real-time timing behaviour of a MidiPlayer:
+ * how late the real-time thread wakes for each deadline, how late each event
+ * is dispatched relative to the time its tick is due, how many events each
+ * pump dispatches, the longest pump and, per EventSource index, how many calls
+ * of a MessageTarget took longer than a threshold.
+ *
+ * Recording is only performed by the real-time thread, into preallocated
+ * arrays, so it does not allocate or lock. Other threads read the arrays
+ * without synchronisation so a Snapshot may be very slightly inconsistent,
+ * which is of no consequence for monitoring. The per EventSource array is
+ * sized by the MidiPlayer when it starts and when its EventSources change,
+ * never while recording.
+ *
+ * PlayerMetrics is a standard MBean which may be registered with register().
+ * @author st
+ *
+ */
+public class PlayerMetrics implements PlayerMetricsMBean
+{
+	private Histogram wakeLateness = new Histogram();
+	private Histogram eventLateness = new Histogram();
+	private Histogram eventsPerPump = new Histogram();
+
+	private volatile long pumps;
+	private volatile long events;
+	private volatile long worstPumpNanos;
+	private volatile long slowThresholdNanos = 500000L;
+	private volatile long[] slowTransports = new long[16];	// per EventSource index
+
+	private int pumpEvents;			// events in the current pump
+
+	private ObjectName objectName;
+
+	/**
+	 * Register with the platform MBeanServer as
+	 * uk.org.toot.midi.seqng:type=PlayerMetrics,name=name
+	 * @param name the name, typically that of the MidiSource
+	 * @throws JMException
+	 */
+	public void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName on = new ObjectName("uk.org.toot.midi.seqng:type=PlayerMetrics,name="+ObjectName.quote(name));
+		server.registerMBean(this, on);
+		objectName = on;
+	}
+
+	/**
+	 * Unregister from the platform MBeanServer, if registered.
+	 * @throws JMException
+	 */
+	public void unregister() throws JMException {
+		if ( objectName == null ) return;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		objectName = null;
+	}
+
+	/**
+	 * @return an immutable Snapshot of the metrics
+	 */
+	public Snapshot getSnapshot() {
+		long[] slow = slowTransports;
+		return new Snapshot(pumps, events, wakeLateness.copy(), eventLateness.copy(),
+			eventsPerPump.copy(), worstPumpNanos, slow.clone());
+	}
+
+	/**
+	 * Clear all metrics. May be called by any thread, recording concurrently
+	 * with a reset may survive it.
+	 */
+	public void reset() {
+		wakeLateness.clear();
+		eventLateness.clear();
+		eventsPerPump.clear();
+		pumps = 0;
+		events = 0;
+		worstPumpNanos = 0;
+		long[] slow = slowTransports;
+		for ( int i = 0; i < slow.length; i++ ) {
+			slow[i] = 0;
+		}
+	}
+
+	/**
+	 * Ensure slow calls can be counted for a number of EventSources, counts
+	 * already recorded being retained.
+	 * Not to be called concurrently with recording.
+	 * @param count the number of EventSources
+	 */
+	void setEventSourceCount(int count) {
+		long[] slow = slowTransports;
+		if ( count <= slow.length ) return;
+		long[] grown = new long[Math.max(count, slow.length * 2)];
+		System.arraycopy(slow, 0, grown, 0, slow.length);
+		slowTransports = grown; // volatile write publishes the copied counts
+	}
+
+	// recording, only by the real-time thread
+
+	void pumpStarted(long wakeLatenessNanos) {
+		if ( wakeLatenessNanos >= 0 ) {
+			wakeLateness.record(wakeLatenessNanos);
+		}
+		pumpEvents = 0;
+	}
+
+	void pumpFinished(long durationNanos) {
+		pumps += 1;
+		eventsPerPump.record(pumpEvents);
+		if ( durationNanos > worstPumpNanos ) {
+			worstPumpNanos = durationNanos;
+		}
+	}
+
+	void eventDispatched(long latenessNanos) {
+		pumpEvents += 1;
+		events += 1;
+		eventLateness.record(latenessNanos < 0 ? 0 : latenessNanos);
+	}
+
+	void transportTimed(int index, long durationNanos) {
+		if ( durationNanos < slowThresholdNanos ) return;
+		long[] slow = slowTransports;
+		// an EventSource added without eventSourcesChanged() is not counted
+		if ( index < slow.length ) {
+			slow[index] += 1;
+		}
+	}
+
+	// PlayerMetricsMBean
+
+	public long getPumpCount() {
+		return pumps;
+	}
+
+	public long getEventCount() {
+		return events;
+	}
+
+	public long getWakeLatenessP50Micros() {
+		return wakeLateness.copy().getPercentile(50) / 1000L;
+	}
+
+	public long getWakeLatenessP99Micros() {
+		return wakeLateness.copy().getPercentile(99) / 1000L;
+	}
+
+	public long getWakeLatenessMaxMicros() {
+		return wakeLateness.copy().getMax() / 1000L;
+	}
+
+	public long getEventLatenessP50Micros() {
+		return eventLateness.copy().getPercentile(50) / 1000L;
+	}
+
+	public long getEventLatenessP99Micros() {
+		return eventLateness.copy().getPercentile(99) / 1000L;
+	}
+
+	public long getEventLatenessMaxMicros() {
+		return eventLateness.copy().getMax() / 1000L;
+	}
+
+	public long getMaxEventsPerPump() {
+		return eventsPerPump.copy().getMax();
+	}
+
+	public long getWorstPumpMicros() {
+		return worstPumpNanos / 1000L;
+	}
+
+	public long getSlowTransportCount() {
+		long count = 0;
+		long[] slow = slowTransports;
+		for ( int i = 0; i < slow.length; i++ ) {
+			count += slow[i];
+		}
+		return count;
+	}
+
+	public long getSlowTransportThresholdMicros() {
+		return slowThresholdNanos / 1000L;
+	}
+
+	/**
+	 * Set the duration above which a call of a MessageTarget is counted as slow.
+	 * @param micros the threshold in microseconds, default 500
+	 */
+	public void setSlowTransportThresholdMicros(long micros) {
+		if ( micros <= 0 ) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		slowThresholdNanos = micros * 1000L;
+	}
+
+	/**
+	 * A Histogram with logarithmic buckets, bucket n counting values from
+	 * 2^(n-1) to 2^n - 1, so the values of nanosecond timings are resolved to
+	 * within a factor of two. The exact maximum is also recorded.
+	 * @author st
+	 */
+	public static class Histogram
+	{
+		private final long[] counts = new long[64];
+		private long max;
+
+		/**
+		 * Record a value, without allocating.
+		 * @param value the non-negative value
+		 */
+		public void record(long value) {
+			counts[64 - Long.numberOfLeadingZeros(value)] += 1;
+			if ( value > max ) max = value;
+		}
+
+		public void clear() {
+			for ( int i = 0; i < counts.length; i++ ) {
+				counts[i] = 0;
+			}
+			max = 0;
+		}
+
+		/**
+		 * @return a copy of this Histogram
+		 */
+		public Histogram copy() {
+			Histogram h = new Histogram();
+			System.arraycopy(counts, 0, h.counts, 0, counts.length);
+			h.max = max;
+			return h;
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount() {
+			long count = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				count += counts[i];
+			}
+			return count;
+		}
+
+		/**
+		 * @return the largest value recorded
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param bucket the bucket index, 0 to 63
+		 * @return the number of values in the bucket
+		 */
+		public long getBucketCount(int bucket) {
+			return counts[bucket];
+		}
+
+		/**
+		 * @param bucket the bucket index, 0 to 63
+		 * @return the largest value counted by the bucket
+		 */
+		public static long getBucketLimit(int bucket) {
+			return bucket == 0 ? 0 : bucket == 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+
+		/**
+		 * Return an upper bound of a percentile, the limit of the bucket which
+		 * contains it, but no more than the maximum.
+		 * @param percentile the percentile, 0 to 100
+		 * @return the upper bound of the percentile or 0 if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			long count = getCount();
+			if ( count == 0 ) return 0;
+			long rank = (long)Math.ceil(count * percentile / 100.0);
+			if ( rank < 1 ) rank = 1;
+			long cumulative = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				cumulative += counts[i];
+				if ( cumulative >= rank ) {
+					return Math.min(getBucketLimit(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * An immutable snapshot of PlayerMetrics.
+	 * @author st
+	 */
+	public static class Snapshot
+	{
+		private final long pumps;
+		private final long events;
+		private final Histogram wakeLateness;
+		private final Histogram eventLateness;
+		private final Histogram eventsPerPump;
+		private final long worstPumpNanos;
+		private final long[] slowTransports;
+
+		Snapshot(long pumps, long events, Histogram wakeLateness, Histogram eventLateness,
+				Histogram eventsPerPump, long worstPumpNanos, long[] slowTransports) {
+			this.pumps = pumps;
+			this.events = events;
+			this.wakeLateness = wakeLateness;
+			this.eventLateness = eventLateness;
+			this.eventsPerPump = eventsPerPump;
+			this.worstPumpNanos = worstPumpNanos;
+			this.slowTransports = slowTransports;
+		}
+
+		public long getPumpCount() { return pumps; }
+
+		public long getEventCount() { return events; }
+
+		/**
+		 * @return the lateness of waking for deadlines, in nanoseconds
+		 */
+		public Histogram getWakeLateness() { return wakeLateness.copy(); }
+
+		/**
+		 * @return the lateness of dispatching events, in nanoseconds
+		 */
+		public Histogram getEventLateness() { return eventLateness.copy(); }
+
+		/**
+		 * @return the number of events dispatched by each pump
+		 */
+		public Histogram getEventsPerPump() { return eventsPerPump.copy(); }
+
+		public long getWorstPumpNanos() { return worstPumpNanos; }
+
+		/**
+		 * @param index the index of the EventSource
+		 * @return the number of slow calls of its MessageTarget
+		 */
+		public long getSlowTransportCount(int index) {
+			return index < slowTransports.length ? slowTransports[index] : 0;
+		}
+	}
+}
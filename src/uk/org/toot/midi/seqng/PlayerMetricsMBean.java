@@ -0,0 +1,43 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+/**
+ * The management interface of PlayerMetrics.
+ * Times are in microseconds.
+ * @author st
+ *
+ */
+public interface PlayerMetricsMBean
+{
+	public long getPumpCount();
+
+	public long getEventCount();
+
+	public long getWakeLatenessP50Micros();
+
+	public long getWakeLatenessP99Micros();
+
+	public long getWakeLatenessMaxMicros();
+
+	public long getEventLatenessP50Micros();
+
+	public long getEventLatenessP99Micros();
+
+	public long getEventLatenessMaxMicros();
+
+	public long getMaxEventsPerPump();
+
+	public long getWorstPumpMicros();
+
+	public long getSlowTransportCount();
+
+	public long getSlowTransportThresholdMicros();
+
+	public void setSlowTransportThresholdMicros(long micros);
+
+	public void reset();
+}
@@ -0,0 +1,296 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.END_OF_TRACK;
+import static uk.org.toot.midi.message.MetaMsg.getType;
+import static uk.org.toot.midi.message.MetaMsg.isMeta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import uk.org.toot.midi.seqng.MidiSource.EventSource;
+
+/**
+ * This class renders MIDI from a MidiSource directly to a type 1 Standard MIDI
+ * File, without building a Sequence, so memory is bounded no matter how long
+ * the MidiSource is. As for SequenceMidiRenderer there is a 1:1 mapping between
+ * EventSources and tracks.
+ *
+ * Each track is encoded into its own fixed size buffer. Full buffers are
+ * spilled to a single temporary file and the tracks are assembled from the
+ * temporary file once their lengths are known. Memory is therefore bounded by
+ * the buffer size multiplied by the number of EventSources.
+ *
+ * EventSources are merged using a heap by default.
+ * @author st
+ *
+ */
+public class SMFMidiRenderer extends MidiRenderer
+{
+	private List<MidiSource.EventSource> eventSources;
+
+	private int bufferSize = 8192;
+
+	private TrackWriter[] writers;
+
+	private long currentTick;
+
+	private FileChannel spill;		// temporary file of full buffers, if any
+	private File spillFile;
+
+	private IOException failure;	// deferred from transport()
+
+	public SMFMidiRenderer() {
+		setMerging(true);
+	}
+
+	public void setMidiSource(MidiSource source) {
+		super.setMidiSource(source);
+		eventSources = source.getEventSources();
+	}
+
+	/**
+	 * Set the size of the buffer used for each track.
+	 * @param size the buffer size in bytes, default 8192
+	 */
+	public void setBufferSize(int size) {
+		if ( size < 16 ) {
+			throw new IllegalArgumentException("buffer size must be at least 16 bytes");
+		}
+		bufferSize = size;
+	}
+
+	/**
+	 * Render the current MidiSource to a Standard MIDI File.
+	 * @param file the File to write
+	 * @throws IOException
+	 */
+	public void render(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			render(out.getChannel());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Render the current MidiSource as a Standard MIDI File.
+	 * The channel is not closed.
+	 * @param out the channel to write to
+	 * @throws IOException
+	 */
+	public void render(WritableByteChannel out) throws IOException {
+		if ( source == null ) {
+			throw new IllegalStateException("MidiSource is null");
+		}
+		int ntracks = eventSources.size();
+		if ( ntracks > 0xFFFF ) {
+			throw new IOException("Too many EventSources for a Standard MIDI File");
+		}
+		writers = new TrackWriter[ntracks];
+		for ( int i = 0; i < ntracks; i++ ) {
+			writers[i] = new TrackWriter();
+		}
+		failure = null;
+		try {
+			currentTick = 0L;
+			boolean complete = false;
+			while ( !complete ) {
+				complete = pump(currentTick);
+				if ( failure != null ) throw failure;
+				currentTick = getNextTick();
+			}
+			ByteBuffer header = ByteBuffer.allocate(14);
+			header.put((byte)'M').put((byte)'T').put((byte)'h').put((byte)'d');
+			header.putInt(6);
+			header.putShort((short)1);
+			header.putShort((short)ntracks);
+			header.putShort((short)source.getResolution());
+			header.flip();
+			writeFully(out, header);
+			for ( int i = 0; i < ntracks; i++ ) {
+				writers[i].endOfTrack();
+				writers[i].writeTo(out);
+			}
+		} finally {
+			writers = null;
+			if ( spill != null ) {
+				try {
+					spill.close();
+				} finally {
+					spill = null;
+					spillFile.delete();
+					spillFile = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	protected List<MidiSource.EventSource> eventSources() {
+		return eventSources;
+	}
+
+	@Override
+	protected void transport(MidiMessage msg, EventSource src, int i) {
+		if ( failure != null ) return;
+		try {
+			writers[i].write(msg, currentTick);
+		} catch ( IOException ioe ) {
+			failure = ioe;
+		}
+	}
+
+	protected FileChannel getSpill() throws IOException {
+		if ( spill == null ) {
+			// deleted after render(), not on exit, which would accumulate
+			spillFile = File.createTempFile("toot", ".smf");
+			spill = new RandomAccessFile(spillFile, "rw").getChannel();
+		}
+		return spill;
+	}
+
+	private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+		while ( buf.hasRemaining() ) {
+			out.write(buf);
+		}
+	}
+
+	/**
+	 * Encodes the events for one track, spilling full buffers.
+	 */
+	private class TrackWriter
+	{
+		private ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		private long[] blocks = new long[4];	// spill positions of full buffers
+		private int nblocks = 0;
+		private long length = 0L;			// total bytes including buffer
+		private long lastTick = 0L;
+		private long endTick = 0L;			// tick of any end of track
+		private int runningStatus = -1;
+
+		public void write(MidiMessage msg, long tick) throws IOException {
+			if ( isMeta(msg) && getType(msg) == END_OF_TRACK ) {
+				endTick = tick; // we write our own on completion
+				return;
+			}
+			// events may not go backwards in time
+			if ( tick > lastTick ) {
+				writeVarInt(tick - lastTick);
+				lastTick = tick;
+			} else {
+				put(0);
+			}
+			byte[] data = msg.getMessage();
+			int len = msg.getLength();
+			int status = msg.getStatus();
+			if ( msg instanceof ShortMessage ) {
+				if ( status < 0xF0 && status == runningStatus ) {
+					put(data, 1, len - 1);
+				} else {
+					runningStatus = status < 0xF0 ? status : -1;
+					put(data, 0, len);
+				}
+			} else if ( msg instanceof SysexMessage ) {
+				runningStatus = -1;
+				put(status);
+				writeVarInt(len - 1);
+				put(data, 1, len - 1);
+			} else { // meta messages already contain their encoded length
+				runningStatus = -1;
+				put(data, 0, len);
+			}
+		}
+
+		public void endOfTrack() throws IOException {
+			writeVarInt(endTick > lastTick ? endTick - lastTick : 0);
+			put(0xFF);
+			put(END_OF_TRACK);
+			put(0);
+		}
+
+		public void writeTo(WritableByteChannel out) throws IOException {
+			if ( length > 0xFFFFFFFFL ) {
+				throw new IOException("Track too long for a Standard MIDI File");
+			}
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.put((byte)'M').put((byte)'T').put((byte)'r').put((byte)'k');
+			header.putInt((int)length);
+			header.flip();
+			writeFully(out, header);
+			long pos;
+			long count;
+			for ( int b = 0; b < nblocks; b++ ) {
+				pos = blocks[b];
+				count = buffer.capacity();
+				while ( count > 0 ) {
+					long n = spill.transferTo(pos, count, out);
+					pos += n;
+					count -= n;
+				}
+			}
+			buffer.flip();
+			writeFully(out, buffer);
+		}
+
+		private void writeVarInt(long value) throws IOException {
+			if ( value > 0x0FFFFFFFL ) {
+				throw new IOException("Delta time "+value+" too large for a Standard MIDI File");
+			}
+			int v = (int)value;
+			if ( v >= 1 << 21 ) put(0x80 | (v >> 21));
+			if ( v >= 1 << 14 ) put(0x80 | ((v >> 14) & 0x7F));
+			if ( v >= 1 << 7 ) put(0x80 | ((v >> 7) & 0x7F));
+			put(v & 0x7F);
+		}
+
+		private void put(int b) throws IOException {
+			if ( !buffer.hasRemaining() ) spill();
+			buffer.put((byte)b);
+			length += 1;
+		}
+
+		private void put(byte[] data, int offset, int len) throws IOException {
+			int n;
+			while ( len > 0 ) {
+				if ( !buffer.hasRemaining() ) spill();
+				n = Math.min(len, buffer.remaining());
+				buffer.put(data, offset, n);
+				offset += n;
+				len -= n;
+				length += n;
+			}
+		}
+
+		private void spill() throws IOException {
+			FileChannel channel = getSpill();
+			if ( nblocks == blocks.length ) {
+				long[] b = new long[nblocks * 2];
+				System.arraycopy(blocks, 0, b, 0, nblocks);
+				blocks = b;
+			}
+			long pos = channel.size();
+			blocks[nblocks++] = pos;
+			buffer.flip();
+			while ( buffer.hasRemaining() ) {
+				pos += channel.write(buffer, pos);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,461 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.getString;
+import static uk.org.toot.midi.message.MetaMsg.getType;
+import static uk.org.toot.midi.message.MetaMsg.isMeta;
+import static uk.org.toot.midi.message.MetaMsg.TRACK_NAME;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * This class is an implementation of MidiSource backed by a memory mapped
+ * Standard MIDI File, which is decoded lazily.
+ *
+ * Only the header and the MTrk chunk headers are read on construction. Each
+ * EventSource decodes the delta times and running status of its track as
+ * peek() and next() advance, so playback may start immediately and only the
+ * pages in use need be resident.
+ *
+ * As for PackedMidiSource, each EventSource returns a single reusable MidiEvent
+ * which is only valid until the next call of peek() or next(). Meta and SysEx
+ * messages are decoded when first reached and the decoded MidiMessage is then
+ * reused, so iterating them again, after a seek or loop wrap, does not
+ * allocate. They must not be modified. Malformed track data terminates the
+ * track, the first such failure being available from
+ * getFailure() so that it may be reported other than by the real-time thread.
+ *
+ * Each EventSource checkpoints its decoder state every 256 events as it first
+ * decodes them. seek() decodes forwards from the current position or from the
+ * last checkpoint before the tick, whichever is later, so seeking backwards,
+ * e.g. on a loop wrap, only decodes the events since that checkpoint.
+ * @author st
+ *
+ */
+public class SMFMidiSource extends MidiSource
+{
+	private static final int CHECKPOINT_INTERVAL = 256; // events
+
+	private String name;
+	private int resolution;
+
+	private MappedByteBuffer buffer;
+	private volatile InvalidMidiDataException failure; // the first, null if none
+
+	private List<SMFEventSource> eventSources =
+		new java.util.ArrayList<SMFEventSource>();
+
+	private List<EventSource> unmodifiableEventSources =
+		Collections.<EventSource>unmodifiableList(eventSources);
+
+	public SMFMidiSource(File file) throws IOException {
+		name = file.getName();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if ( channel.size() > Integer.MAX_VALUE ) {
+				throw new IOException(name+" is too large to map");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close(); // the mapping remains valid
+		}
+		int limit = buffer.limit();
+		if ( limit < 14 || buffer.getInt(0) != 0x4D546864 ) { // MThd
+			throw new IOException(name+" is not a Standard MIDI File");
+		}
+		int headerLength = buffer.getInt(4);
+		int ntracks = buffer.getShort(10) & 0xFFFF;
+		int division = buffer.getShort(12);
+		if ( division < 0 ) {
+			throw new IOException(name+" has SMPTE division which is not supported");
+		}
+		resolution = division;
+		// index the MTrk chunks, skipping any unknown chunks
+		long pos = 8L + headerLength;
+		int chunkType;
+		long chunkLength;
+		while ( eventSources.size() < ntracks && pos + 8 <= limit ) {
+			chunkType = buffer.getInt((int)pos);
+			chunkLength = buffer.getInt((int)pos + 4) & 0xFFFFFFFFL;
+			pos += 8;
+			if ( pos + chunkLength > limit ) {
+				throw new IOException(name+" is truncated");
+			}
+			if ( chunkType == 0x4D54726B ) { // MTrk
+				eventSources.add(new SMFEventSource(eventSources.size(), (int)pos, (int)(pos + chunkLength)));
+			}
+			pos += chunkLength;
+		}
+	}
+
+	@Override
+	public List<EventSource> getEventSources() {
+		return unmodifiableEventSources;
+	}
+
+	@Override
+	public int getResolution() {
+		return resolution;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the first failure to decode malformed track data, which
+	 * terminated its track, or null if none
+	 */
+	public InvalidMidiDataException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	public void returnToZero() {
+		for ( SMFEventSource src : eventSources ) {
+			src.returnToZero();
+		}
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	/**
+	 * Should only be called by the client.
+	 */
+	@Override
+	public void seek(long tick) {
+		for ( SMFEventSource src : eventSources ) {
+			src.seek(tick);
+		}
+	}
+
+	/**
+	 * A reusable MidiEvent whose MidiMessage may be replaced.
+	 */
+	private static class SMFEvent extends MidiEvent
+	{
+		private MidiMessage message;
+
+		public SMFEvent(MidiMessage message) {
+			super(message, 0L);
+			this.message = message;
+		}
+
+		@Override
+		public MidiMessage getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Decodes the events of an MTrk chunk.
+	 */
+	private class Decoder
+	{
+		private int start, end;
+		private int pos;				// position of the next undecoded event
+		private long tick;				// tick of the last decoded event
+		private int runningStatus;
+		private int blobs;				// meta and sysex events decoded
+		private int count;				// events decoded
+
+		// decoder state before every CHECKPOINT_INTERVAL events, grow only
+		private int checkpoints = 0;
+		private int[] checkpointPos = new int[0];
+		private long[] checkpointTick = new long[0];
+		private int[] checkpointStatus = new int[0];
+		private int[] checkpointBlobs = new int[0];
+
+		private ShortMessage shortMessage = new ShortMessage();
+		private SMFEvent event = new SMFEvent(shortMessage);
+		private MidiMessage[] messages = new MidiMessage[0]; // by blob, null until decoded
+		private byte[] scratch = new byte[0];	// grow only
+
+		public Decoder(int start, int end) {
+			this.start = start;
+			this.end = end;
+			returnToZero();
+		}
+
+		public void returnToZero() {
+			pos = start;
+			tick = 0L;
+			runningStatus = -1;
+			blobs = 0;
+			count = 0;
+		}
+
+		/**
+		 * Resume from the last checkpoint before a tick, if backwards or later
+		 * than the current position, so that no event at or after the tick
+		 * has been decoded.
+		 * @param target the tick to resume before
+		 * @param backwards true if events at or after target have been decoded
+		 */
+		public void resume(long target, boolean backwards) {
+			// binary search for the last checkpoint before tick
+			int lo = 0;
+			int hi = checkpoints;
+			int mid;
+			while ( lo < hi ) {
+				mid = (lo + hi) >>> 1;
+				if ( checkpointTick[mid] < target ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			int i = lo - 1;
+			if ( i < 0 ) {
+				if ( backwards ) returnToZero();
+				return;
+			}
+			if ( !backwards && i * CHECKPOINT_INTERVAL < count ) return;
+			pos = checkpointPos[i];
+			tick = checkpointTick[i];
+			runningStatus = checkpointStatus[i];
+			blobs = checkpointBlobs[i];
+			count = i * CHECKPOINT_INTERVAL;
+		}
+
+		private void checkpoint() {
+			if ( checkpoints == checkpointPos.length ) {
+				int n = Math.max(16, checkpoints * 2);
+				checkpointPos = Arrays.copyOf(checkpointPos, n);
+				checkpointTick = Arrays.copyOf(checkpointTick, n);
+				checkpointStatus = Arrays.copyOf(checkpointStatus, n);
+				checkpointBlobs = Arrays.copyOf(checkpointBlobs, n);
+			}
+			checkpointPos[checkpoints] = pos;
+			checkpointTick[checkpoints] = tick;
+			checkpointStatus[checkpoints] = runningStatus;
+			checkpointBlobs[checkpoints] = blobs;
+			checkpoints += 1;
+		}
+
+		/**
+		 * Decode the next event into the reusable MidiEvent.
+		 * @return the MidiEvent or null if the end of the track has been reached
+		 */
+		public MidiEvent decode() {
+			if ( pos >= end ) return null;
+			if ( count == checkpoints * CHECKPOINT_INTERVAL ) {
+				checkpoint(); // only when first decoded
+			}
+			try {
+				tick += readVarInt();
+				if ( pos >= end ) {
+					throw new InvalidMidiDataException("unexpected end of track");
+				}
+				int status = buffer.get(pos) & 0xFF;
+				if ( status >= 0x80 ) {
+					pos += 1;
+				} else if ( runningStatus >= 0 ) {
+					status = runningStatus;
+				} else {
+					throw new InvalidMidiDataException("no running status");
+				}
+				int length;
+				switch ( status ) {
+				case MetaMessage.META:
+					int type = get() & 0xFF;
+					length = readVarInt();
+					if ( isDecoded() ) {
+						skip(length);
+					} else {
+						read(length, 0);
+						MetaMessage meta = new MetaMessage();
+						meta.setMessage(type, scratch, length);
+						decoded(meta);
+					}
+					event.message = messages[blobs++];
+					break;
+				case SysexMessage.SYSTEM_EXCLUSIVE:
+				case SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE:
+					length = readVarInt();
+					if ( isDecoded() ) {
+						skip(length);
+					} else {
+						read(length, 1);
+						scratch[0] = (byte)status;
+						SysexMessage sysex = new SysexMessage();
+						sysex.setMessage(scratch, length + 1);
+						decoded(sysex);
+					}
+					event.message = messages[blobs++];
+					break;
+				default:
+					if ( status >= 0xF0 ) {
+						throw new InvalidMidiDataException("unexpected status "+status);
+					}
+					runningStatus = status;
+					int data1 = get() & 0x7F;
+					int data2 = 0;
+					int command = status & 0xF0;
+					if ( command != ShortMessage.PROGRAM_CHANGE &&
+						 command != ShortMessage.CHANNEL_PRESSURE ) {
+						data2 = get() & 0x7F;
+					}
+					shortMessage.setMessage(status, data1, data2);
+					event.message = shortMessage;
+					break;
+				}
+			} catch ( InvalidMidiDataException imde ) {
+				if ( failure == null ) {
+					failure = imde; // reported by the client, not on the pump path
+				}
+				pos = end;
+				return null;
+			}
+			count += 1;
+			event.setTick(tick);
+			return event;
+		}
+
+		private byte get() throws InvalidMidiDataException {
+			if ( pos >= end ) {
+				throw new InvalidMidiDataException("unexpected end of track");
+			}
+			return buffer.get(pos++);
+		}
+
+		// whether the current blob was decoded by a previous iteration
+		private boolean isDecoded() {
+			return blobs < messages.length && messages[blobs] != null;
+		}
+
+		private void decoded(MidiMessage msg) {
+			if ( blobs >= messages.length ) {
+				messages = Arrays.copyOf(messages, Math.max(16, blobs * 2));
+			}
+			messages[blobs] = msg;
+		}
+
+		// read length bytes into scratch at offset
+		private void read(int length, int offset) throws InvalidMidiDataException {
+			if ( length > end - pos ) {
+				throw new InvalidMidiDataException("unexpected end of track");
+			}
+			if ( scratch.length < offset + length ) {
+				scratch = new byte[offset + length];
+			}
+			for ( int i = 0; i < length; i++ ) {
+				scratch[offset + i] = buffer.get(pos++);
+			}
+		}
+
+		private void skip(int length) throws InvalidMidiDataException {
+			if ( length > end - pos ) {
+				throw new InvalidMidiDataException("unexpected end of track");
+			}
+			pos += length;
+		}
+
+		private int readVarInt() throws InvalidMidiDataException {
+			int value = 0;
+			int b;
+			for ( int i = 0; i < 4; i++ ) {
+				b = get();
+				value = (value << 7) | (b & 0x7F);
+				if ( (b & 0x80) == 0 ) return value;
+			}
+			throw new InvalidMidiDataException("variable length quantity too long");
+		}
+	}
+
+	protected class SMFEventSource implements EventSource
+	{
+		private int trk;
+		private int start, end;
+		private Decoder decoder;
+		private MidiEvent next;			// decoded but not consumed, or null
+		private String name;
+
+		public SMFEventSource(int trk, int start, int end) {
+			this.trk = trk;
+			this.start = start;
+			this.end = end;
+			decoder = new Decoder(start, end);
+		}
+
+		public MidiEvent peek() {
+			if ( next == null ) {
+				next = decoder.decode();
+			}
+			return next;
+		}
+
+		public MidiEvent next() {
+			MidiEvent evt = peek();
+			next = null;
+			return evt;
+		}
+
+		public void returnToZero() {
+			decoder.returnToZero();
+			next = null;
+		}
+
+		public void seek(long tick) {
+			MidiEvent evt = peek();
+			// the peeked event has been decoded but not consumed
+			decoder.resume(tick, evt == null || evt.getTick() >= tick);
+			next = null;
+			evt = peek();
+			while ( evt != null && evt.getTick() < tick ) {
+				next();
+				evt = peek();
+			}
+		}
+
+		/**
+		 * The name is only determined when first required, by decoding the
+		 * track independently of playback.
+		 */
+		public String getName() {
+			if ( name == null ) {
+				String aname = getMetaName(TRACK_NAME);
+				name = aname == null ? "Player: Track "+(1+trk) : "Player: "+aname;
+			}
+			return name;
+		}
+
+		protected String getMetaName(int type) {
+			Decoder scanner = new Decoder(start, end);
+			MidiEvent event;
+			MidiMessage msg;
+			while ( (event = scanner.decode()) != null ) {
+				msg = event.getMessage();
+				if ( isMeta(msg) && getType(msg) == type ) {
+					return getString(msg);
+				}
+			}
+			return null;
+		}
+	}
+}
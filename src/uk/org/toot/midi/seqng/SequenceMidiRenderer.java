@@ -6,16 +6,27 @@
 package uk.org.toot.midi.seqng;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
 
 import uk.org.toot.midi.seqng.MidiSource.EventSource;
 
 /**
  * This class renders MIDI from a MidiSource to a Sequence.
+ * 
+ * Because there is a 1:1 mapping between EventSources and tracks, and a
+ * Sequence does not depend on tempo, each track may be rendered independently.
+ * In parallel mode the EventSources are rendered concurrently by a ForkJoinPool,
+ * each into its own track, and the result is identical to a serial render.
+ * Parallel mode requires that EventSources may be iterated concurrently,
+ * as for the MidiSource implementations in this package, and it does not call
+ * transport() or check().
  * @author st
  *
  */
@@ -25,13 +36,52 @@ public class SequenceMidiRenderer extends MidiRenderer
 	
 	private Sequence sequence;
 	
+	private Track[] tracks;	// getTracks() returns a copy so we cache it
+	
 	private long currentTick;
 	
+	private ForkJoinPool pool;	// null unless parallel
+	
 	public void setMidiSource(MidiSource source) {
 		super.setMidiSource(source);
 		eventSources = source.getEventSources();
 	}
 	
+	/**
+	 * Release the MidiSource and the last rendered Sequence, so that a
+	 * SequenceMidiRenderer which is retained for reuse doesn't keep them
+	 * reachable. setMidiSource() must be called before rendering again.
+	 */
+	public void release() {
+		releaseMidiSource();
+		eventSources = null;
+		sequence = null;
+		tracks = null;
+	}
+	
+	/**
+	 * Set whether to render EventSources in parallel using the common ForkJoinPool.
+	 * @param parallel true to render in parallel
+	 */
+	public void setParallel(boolean parallel) {
+		setForkJoinPool(parallel ? ForkJoinPool.commonPool() : null);
+	}
+	
+	/**
+	 * Set the ForkJoinPool used to render EventSources in parallel.
+	 * @param pool the ForkJoinPool, or null to render serially
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * @return whether EventSources are rendered in parallel
+	 */
+	public boolean isParallel() {
+		return pool != null;
+	}
+	
 	/**
 	 * Render the current MidiSource to a Sequence.
 	 * @return the rendered Sequence
@@ -42,9 +92,16 @@ public class SequenceMidiRenderer extends MidiRenderer
 		for ( int i = 0; i < eventSources.size(); i++ ) {
 			sequence.createTrack();
 		}
+		tracks = sequence.getTracks();
+		currentTick = findNextTick();
+		if ( pool != null ) {
+			pool.invoke(new TrackRenderer(0, tracks.length, currentTick));
+			return sequence;
+		}
 		boolean complete = false;
 		while ( !complete ) {
-			complete = pump(currentTick = findNextTick());
+			complete = pump(currentTick);
+			currentTick = getNextTick(); // which accounts for tick offsets
 		}
 		return sequence;
 	}
@@ -71,6 +128,47 @@ public class SequenceMidiRenderer extends MidiRenderer
 
 	@Override
 	protected void transport(MidiMessage msg, EventSource src, int i) {
-		sequence.getTracks()[i].add(new MidiEvent(msg, currentTick));
+		// the MidiMessage may be reused by the EventSource
+		tracks[i].add(new MidiEvent((MidiMessage)msg.clone(), currentTick));
+	}
+	
+	/**
+	 * Renders a range of EventSources, splitting it until each EventSource is
+	 * rendered by its own task.
+	 * Events are added at the same ticks as by pump(), i.e. offset, but not
+	 * before the first tick of the serial render.
+	 */
+	private class TrackRenderer extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int from, to;
+		private long firstTick;
+		
+		public TrackRenderer(int from, int to, long firstTick) {
+			this.from = from;
+			this.to = to;
+			this.firstTick = firstTick;
+		}
+		
+		@Override
+		protected void compute() {
+			if ( to - from > 1 ) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TrackRenderer(from, mid, firstTick),
+						  new TrackRenderer(mid, to, firstTick));
+				return;
+			}
+			if ( to == from ) return;
+			MidiSource.EventSource src = eventSources.get(from);
+			Track track = tracks[from];
+			MidiEvent evt;
+			long offset = getTickOffset(src, from);
+			while ( (evt = src.next()) != null ) {
+				// the MidiMessage may be reused by the EventSource
+				track.add(new MidiEvent((MidiMessage)evt.getMessage().clone(),
+							Math.max(evt.getTick() + offset, firstTick)));
+			}
+		}
 	}
 }
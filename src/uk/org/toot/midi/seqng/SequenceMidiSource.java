@@ -20,7 +20,8 @@ import javax.sound.midi.Track;
 
 /**
  * This class is an implementation of MidiSource backed by a Sequence.
- * This class is not robust in the face of edits to the Sequence.
+ * This class is not robust in the face of edits to the Sequence,
+ * EditableMidiSource should be used if the music is edited whilst playing.
  * @author st
  *
  */
@@ -31,6 +32,9 @@ public class SequenceMidiSource extends MidiSource
 	private List<SequenceEventSource> eventSources = 
 		new java.util.ArrayList<SequenceEventSource>();
 	
+	private List<EventSource> unmodifiableEventSources =
+		Collections.<EventSource>unmodifiableList(eventSources);
+	
 	public SequenceMidiSource(Sequence sequence) {
 		this.sequence = sequence;
 		Track[] tracks = sequence.getTracks();
@@ -43,7 +47,7 @@ public class SequenceMidiSource extends MidiSource
 	
 	@Override
 	public List<EventSource> getEventSources() {
-		return Collections.<EventSource>unmodifiableList(eventSources);
+		return unmodifiableEventSources;
 	}
 	
 	@Override
@@ -66,6 +70,21 @@ public class SequenceMidiSource extends MidiSource
 		}
 	}
 	
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+	
+	/**
+	 * Should only be called by the client.
+	 */
+	@Override
+	public void seek(long tick) {
+		for ( MidiSource.EventSource src : eventSources ) {
+			((SequenceEventSource)src).seek(tick);
+		}
+	}
+	
 	protected class SequenceEventSource implements EventSource
 	{
 		private Track track;
@@ -92,6 +111,22 @@ public class SequenceMidiSource extends MidiSource
 			index = 0;
 		}
 		
+		// binary search for the first event at or after tick
+		public void seek(long tick) {
+			int lo = 0;
+			int hi = track.size();
+			int mid;
+			while ( lo < hi ) {
+				mid = (lo + hi) >>> 1;
+				if ( track.get(mid).getTick() < tick ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			index = lo;
+		}
+		
 		public String getName() {
 			return name;
 		}
@@ -0,0 +1,253 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A SharedPlayEngine plays many MidiPlayers on a fixed number of real-time
+ * threads, rather than each MidiPlayer playing on a thread of its own, see
+ * MidiPlayer.setSharedPlayEngine().
+ *
+ * Each thread services its MidiPlayers from a deadline queue, a heap ordered
+ * by the time each MidiPlayer next needs to pump. It parks until the earliest
+ * deadline, then busy waits for the final spinNanos, pumps that MidiPlayer and
+ * requeues it at its new deadline. A MidiPlayer is assigned to the thread with
+ * fewest MidiPlayers when it starts playing and remains on it until it stops,
+ * so each MidiPlayer is still only pumped by one thread at a time.
+ *
+ * Each MidiPlayer keeps its own tempo, position, looping and stop semantics.
+ * Since pumps on the same thread are serialised a pump which is due while
+ * another MidiPlayer is pumping is late by up to that pump's duration, which
+ * may be measured with MidiPlayer.setInstrumented().
+ *
+ * A MidiPlayer which throws a RuntimeException is stopped and the exception is
+ * available from its getFailure(), the other MidiPlayers being unaffected.
+ *
+ * The threads are daemon threads, so unlike a MidiPlayer's own thread they do
+ * not prevent the JVM from exiting while playing.
+ * @author st
+ *
+ */
+public class SharedPlayEngine
+{
+	private Worker[] workers;
+	private volatile long spinNanos = 200000L;
+
+	/**
+	 * @param name the name of the threads
+	 * @param nthreads the number of threads
+	 */
+	public SharedPlayEngine(String name, int nthreads) {
+		if ( nthreads <= 0 ) {
+			throw new IllegalArgumentException("nthreads must be positive");
+		}
+		workers = new Worker[nthreads];
+		for ( int i = 0; i < nthreads; i++ ) {
+			workers[i] = new Worker(nthreads == 1 ? name : name+" "+(i+1));
+		}
+	}
+
+	/**
+	 * Set the time before a deadline at which the threads stop parking
+	 * and busy wait instead, trading cpu for sub-millisecond accuracy.
+	 * @param nanos the spin time in nanoseconds, default 200 microseconds
+	 */
+	public void setSpinNanos(long nanos) {
+		if ( nanos < 0 ) {
+			throw new IllegalArgumentException("spin time can't be negative");
+		}
+		spinNanos = nanos;
+	}
+
+	/**
+	 * @return the number of threads
+	 */
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	/**
+	 * @return the number of MidiPlayers currently playing
+	 */
+	public int getPlayerCount() {
+		int count = 0;
+		for ( int i = 0; i < workers.length; i++ ) {
+			count += workers[i].count.get();
+		}
+		return count;
+	}
+
+	// called by MidiPlayer.play()
+	void add(MidiPlayer player) {
+		Worker w = workers[0];
+		for ( int i = 1; i < workers.length; i++ ) {
+			if ( workers[i].count.get() < w.count.get() ) {
+				w = workers[i];
+			}
+		}
+		w.count.incrementAndGet();
+		player.worker = w;
+		w.request(new Request(player, true));
+	}
+
+	private static class Request
+	{
+		final MidiPlayer player;
+		final boolean add;
+
+		Request(MidiPlayer player, boolean add) {
+			this.player = player;
+			this.add = add;
+		}
+	}
+
+	/**
+	 * A Worker is a real-time thread and its deadline queue.
+	 * The deadline queue is only accessed by the thread.
+	 * @author st
+	 */
+	class Worker implements Runnable
+	{
+		private ConcurrentLinkedQueue<Request> requests =
+			new ConcurrentLinkedQueue<Request>();
+		private AtomicInteger count = new AtomicInteger();
+		private Thread thread;
+
+		private MidiPlayer[] players = new MidiPlayer[16];
+		private long[] deadlines = new long[16];
+		private int size = 0;
+
+		Worker(String name) {
+			// nearly MAX_PRIORITY, as for a MidiPlayer's own thread
+			int priority = Thread.NORM_PRIORITY
+			+ ((Thread.MAX_PRIORITY - Thread.NORM_PRIORITY) * 3) / 4;
+			thread = new Thread(this, name);
+			thread.setPriority(priority);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// called by MidiPlayer.stop()
+		void remove(MidiPlayer player) {
+			request(new Request(player, false));
+		}
+
+		private void request(Request r) {
+			requests.offer(r);
+			LockSupport.unpark(thread); // promptly rather than at the next deadline
+		}
+
+		public void run() {
+			Request r;
+			MidiPlayer player;
+			long remaining;
+			while ( true ) {
+				while ( (r = requests.poll()) != null ) {
+					if ( r.add ) {
+						r.player.started();
+						offer(r.player, r.player.getCurrentTimeNanos());
+					} else {
+						int i = indexOf(r.player);
+						if ( i < 0 ) continue; // already finished
+						removeAt(i);
+						finish(r.player);
+					}
+				}
+				if ( size == 0 ) {
+					LockSupport.park(this);
+					continue;
+				}
+				remaining = deadlines[0] - players[0].getCurrentTimeNanos();
+				if ( remaining > 0 ) {
+					if ( remaining > spinNanos ) {
+						LockSupport.parkNanos(this, remaining - spinNanos);
+					} else {
+						Thread.yield();
+					}
+					continue; // requests may have arrived
+				}
+				player = players[0];
+				removeAt(0);
+				try {
+					if ( player.service() ) {
+						finish(player);
+					} else {
+						offer(player, player.schedule());
+					}
+				} catch ( RuntimeException re ) {
+					// don't let one MidiPlayer stop the others, or block them
+					// by reporting it here
+					player.failure = re;
+					finish(player);
+				}
+			}
+		}
+
+		private void finish(MidiPlayer player) {
+			player.worker = null;
+			count.decrementAndGet();
+			player.finished();
+		}
+
+		private int indexOf(MidiPlayer player) {
+			for ( int i = 0; i < size; i++ ) {
+				if ( players[i] == player ) return i;
+			}
+			return -1;
+		}
+
+		private void offer(MidiPlayer player, long deadline) {
+			if ( size == players.length ) {
+				players = Arrays.copyOf(players, size * 2);
+				deadlines = Arrays.copyOf(deadlines, size * 2);
+			}
+			int i = size++;
+			// sift up
+			while ( i > 0 ) {
+				int parent = (i - 1) >>> 1;
+				if ( deadlines[parent] - deadline <= 0 ) break;
+				players[i] = players[parent];
+				deadlines[i] = deadlines[parent];
+				i = parent;
+			}
+			players[i] = player;
+			deadlines[i] = deadline;
+		}
+
+		private void removeAt(int i) {
+			int last = --size;
+			MidiPlayer player = players[last];
+			long deadline = deadlines[last];
+			players[last] = null;
+			if ( i == last ) return;
+			// sift up, in case the last was earlier than the parent of i
+			while ( i > 0 ) {
+				int parent = (i - 1) >>> 1;
+				if ( deadlines[parent] - deadline <= 0 ) break;
+				players[i] = players[parent];
+				deadlines[i] = deadlines[parent];
+				i = parent;
+			}
+			// sift down
+			int child;
+			while ( (child = 2 * i + 1) < size ) {
+				if ( child + 1 < size && deadlines[child + 1] - deadlines[child] < 0 ) {
+					child++;
+				}
+				if ( deadline - deadlines[child] <= 0 ) break;
+				players[i] = players[child];
+				deadlines[i] = deadlines[child];
+				i = child;
+			}
+			players[i] = player;
+			deadlines[i] = deadline;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * A SyncReceiver slaves a MidiPlayer to incoming synchronisation messages,
+ * MTC or MIDI clock, received from a Transmitter or sent to it directly, see
+ * MTCSyncReceiver and ClockSyncReceiver.
+ *
+ * Synchronisation messages are pulses, quarter frames or clocks, whose index
+ * identifies the master position. The times at which they arrive, subject
+ * to jitter, are smoothed by a second order delay-locked loop, a phase locked
+ * loop for time, which estimates the time and period of each pulse.
+ *
+ * The MidiPlayer's clock, getCurrentTimeNanos(), is then replaced by a clock
+ * which is the MidiSource time corresponding to the smoothed master position,
+ * and the MidiPlayer's position is tied to it, so the MidiPlayer plays in
+ * step with the master however its tempo varies, and since the loop corrects
+ * phase and frequency gradually drift is corrected without audible jumps.
+ * Master repositions instead reposition the MidiPlayer, on its next pump if
+ * running, or before play() if stopped, which requires a seekable MidiSource
+ * unless the position is zero.
+ *
+ * If no synchronisation message arrives within the timeout the MidiPlayer
+ * freewheels at the last known period until it is stopped by its real-time
+ * thread.
+ *
+ * Timestamps passed to send(), in microseconds on the System.nanoTime()
+ * timescale as for MidiTarget.TimestampedMessageTarget, are used as the
+ * arrival time, otherwise the time send() is called, so recorded timecode may
+ * be fed from a local loopback with its original timing.
+ * @author st
+ *
+ */
+public abstract class SyncReceiver implements Receiver
+{
+	protected MidiPlayer player;
+
+	private volatile Lock lock;			// null unless locked
+	private volatile long frozenNanos;	// our time while unlocked
+	private volatile long lastNanos;	// arrival of the last message
+	private volatile long timeoutNanos = 250000000L;
+	private volatile int located;		// the generation last repositioned to
+	private double bandwidth = 2.0;		// of the loop in Hz
+
+	// loop state, only accessed by the receiving thread
+	private double b, c;				// loop coefficients
+	private long index;					// of the last pulse
+	private long base;					// time origin of t0 and t1
+	private double t0, t1;				// filtered time of last and next pulse
+	private double period;				// filtered pulse period
+	private int generation;				// of the last reposition
+
+	/**
+	 * Slave a MidiPlayer, which must not have a lookahead or play on a
+	 * SharedPlayEngine.
+	 * @param player the MidiPlayer to slave
+	 */
+	protected SyncReceiver(MidiPlayer player) {
+		this.player = player;
+		player.setSyncReceiver(this);
+	}
+
+	/**
+	 * @return the slaved MidiPlayer
+	 */
+	public MidiPlayer getPlayer() {
+		return player;
+	}
+
+	/**
+	 * Set the loop bandwidth. A lower bandwidth rejects more jitter but
+	 * follows master tempo changes more slowly.
+	 * Takes effect when next locked.
+	 * @param hz the bandwidth in Hz, default 2
+	 */
+	public void setBandwidth(double hz) {
+		if ( hz <= 0 ) {
+			throw new IllegalArgumentException("bandwidth must be positive");
+		}
+		bandwidth = hz;
+	}
+
+	/**
+	 * @return the loop bandwidth in Hz
+	 */
+	public double getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Set the time without synchronisation messages after which the slaved
+	 * MidiPlayer is stopped.
+	 * @param millis the timeout in milliseconds, default 250
+	 */
+	public void setTimeout(long millis) {
+		if ( millis <= 0 ) {
+			throw new IllegalArgumentException("timeout must be positive");
+		}
+		timeoutNanos = millis * 1000000L;
+	}
+
+	/**
+	 * @return whether we are locked to the master and it has not timed out
+	 */
+	public boolean isLocked() {
+		return lock != null && !isTimedOut();
+	}
+
+	/**
+	 * @return the filtered pulse period in nanoseconds, 0 if not locked
+	 */
+	public double getPeriodNanos() {
+		Lock l = lock;
+		return l == null ? 0 : l.t1 - l.t0;
+	}
+
+	public void send(MidiMessage msg, long timeStamp) {
+		long nanos = timeStamp < 0 ? System.nanoTime() : timeStamp * 1000L;
+		lastNanos = nanos;
+		if ( lock != null && !player.isRunning() ) {
+			unlock(); // stopped other than by us
+		}
+		receive(msg, nanos);
+	}
+
+	public void close() {
+		unlock();
+	}
+
+	/**
+	 * Receive a MidiMessage, on the receiving thread.
+	 * @param msg the MidiMessage
+	 * @param nanos the time it arrived
+	 */
+	protected abstract void receive(MidiMessage msg, long nanos);
+
+	/**
+	 * Convert a master position to MidiSource time.
+	 * Must be continuous and monotonic.
+	 * @param index the master position in pulses, not necessarily integral
+	 * @return the MidiSource time in nanoseconds
+	 */
+	protected abstract double getSourceNanos(double index);
+
+	/**
+	 * Lock to the master, a pulse having arrived.
+	 * @param pulse the index of the pulse
+	 * @param nanos the time the pulse arrived
+	 * @param nominal the expected pulse period in nanoseconds
+	 */
+	protected void lock(long pulse, long nanos, double nominal) {
+		lock(pulse, nanos, nominal, -1L);
+	}
+
+	/**
+	 * Lock to the master, a pulse having arrived, the running MidiPlayer
+	 * being repositioned on its next pump, so that it never plays from the
+	 * old position at the new time.
+	 * @param pulse the index of the pulse
+	 * @param nanos the time the pulse arrived
+	 * @param nominal the expected pulse period in nanoseconds
+	 * @param tick the tick to reposition to, -1 if none
+	 */
+	protected void lock(long pulse, long nanos, double nominal, long tick) {
+		double omega = 2 * Math.PI * bandwidth * nominal / 1000000000.0;
+		b = Math.sqrt(2) * omega;
+		c = omega * omega;
+		index = pulse;
+		base = nanos;
+		t0 = 0;
+		t1 = nominal;
+		period = nominal;
+		if ( tick >= 0 ) generation += 1;
+		lock = new Lock(index, base, t0, t1, tick, generation);
+	}
+
+	/**
+	 * Update the loop when the next pulse arrives.
+	 * If the pulse is too far from where it was expected we relock.
+	 * @param nanos the time the pulse arrived
+	 */
+	protected void pulse(long nanos) {
+		Lock l = lock;
+		if ( l == null ) return;
+		double e = (nanos - base) - t1;
+		if ( Math.abs(e) > 4 * period ) {
+			lock(index + 1, nanos, period);
+			return;
+		}
+		t0 = t1;
+		t1 += b * e + period;
+		period += c * e;
+		index += 1;
+		lock = new Lock(index, base, t0, t1, l.tick, l.generation);
+	}
+
+	/**
+	 * Update the loop for a pulse which was missed, as predicted.
+	 */
+	protected void skip() {
+		Lock l = lock;
+		if ( l == null ) return;
+		t0 = t1;
+		t1 += period;
+		index += 1;
+		lock = new Lock(index, base, t0, t1, l.tick, l.generation);
+	}
+
+	/**
+	 * Stop following the master, our time stopping where it is.
+	 */
+	protected void unlock() {
+		Lock l = lock;
+		if ( l == null ) return;
+		frozenNanos = getTimeNanos(l);
+		located = l.generation; // a pending reposition is abandoned
+		lock = null;
+	}
+
+	/**
+	 * @return the index of the last pulse while locked
+	 */
+	protected long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Reposition the stopped MidiPlayer, or return it to zero if it can't seek.
+	 * @param tick the tick
+	 */
+	protected void locate(long tick) {
+		if ( player.source.isSeekable() ) {
+			player.setTickPosition(tick);
+		} else if ( tick == 0 && !player.isRunning() ) {
+			player.returnToZero();
+		}
+	}
+
+	/**
+	 * Return the time which replaces System.nanoTime() for the slaved MidiPlayer.
+	 * While locked it is the MidiSource time corresponding to the smoothed
+	 * master position, otherwise it stands still.
+	 * @return the time in nanoseconds
+	 */
+	public long getTimeNanos() {
+		Lock l = lock;
+		return l == null ? frozenNanos : getTimeNanos(l);
+	}
+
+	private long getTimeNanos(Lock l) {
+		double t = System.nanoTime() - l.base;
+		return (long)getSourceNanos(l.index + (t - l.t0) / (l.t1 - l.t0));
+	}
+
+	// called by the real-time thread of the MidiPlayer
+	// convert a duration in our time to wall time at the current rate, at
+	// most one pulse period since the rate follows the master
+	long toWallNanos(long nanos) {
+		Lock l = lock;
+		if ( l == null ) return nanos; // our time stands still
+		double period = l.t1 - l.t0;
+		double rate = (getSourceNanos(l.index + 1) - getSourceNanos(l.index)) / period;
+		double wall = rate > 0 ? nanos / rate : nanos;
+		return (long)Math.min(wall, period);
+	}
+
+	// called by the real-time thread of the MidiPlayer
+	boolean isTimedOut() {
+		return lock != null && System.nanoTime() - lastNanos > timeoutNanos;
+	}
+
+	// called by the real-time thread of the MidiPlayer
+	// return the tick to reposition to, -1 if none
+	long takeReposition() {
+		Lock l = lock;
+		if ( l == null || l.generation == located ) return -1L;
+		located = l.generation;
+		return l.tick;
+	}
+
+	/**
+	 * An immutable snapshot of the loop state, published to other threads.
+	 */
+	private static class Lock
+	{
+		final long index;			// of the last pulse
+		final long base;			// time origin of t0 and t1
+		final double t0, t1;		// filtered time of last and next pulse
+		final long tick;			// to reposition to, -1 if none
+		final int generation;		// incremented by each reposition
+
+		Lock(long index, long base, double t0, double t1, long tick, int generation) {
+			this.index = index;
+			this.base = base;
+			this.t0 = t0;
+			this.t1 = t1;
+			this.tick = tick;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import static uk.org.toot.midi.message.MetaMsg.*;
+
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * A TempoMap caches the contiguous series of linear tempo segments described
+ * in MidiPlayer so that arbitrary ticks may be converted to time and vice versa.
+ *
+ * Segments are held in parallel sorted arrays and located by binary search so
+ * conversion is O(log n) in the number of tempo changes. Segments are normally
+ * appended in tick order as Tempo events are played but they may also be
+ * precomputed from a MidiSource by scan().
+ *
+ * Before the first Tempo event the tempo is 120 bpm, as for MidiPlayer.
+ * Beyond the last known segment the last known tempo is assumed to continue.
+ *
+ * Tempos are held in microseconds per quarter note, exactly as encoded in
+ * Tempo events, and times are held in nanoseconds multiplied by the
+ * resolution, so every tick has an exact integral time and no rounding
+ * errors accumulate however many segments there are. At a resolution of
+ * 960 times up to about 110 days may be represented.
+ *
+ * Methods are synchronized, additions only occur on tempo changes so lock
+ * contention with the real-time thread is very unlikely.
+ * @author st
+ *
+ */
+public class TempoMap
+{
+	private static final float MICROS_PER_MINUTE = 60000000f;
+
+	private int resolution;
+
+	private long[] ticks;	// tick at start of each segment
+	private long[] times;	// time at start of each segment, nanoseconds * resolution
+	private int[] tempos;	// tempo of each segment, microseconds per quarter note
+	private int size;
+
+	public TempoMap(int resolution) {
+		if ( resolution <= 0 ) {
+			throw new IllegalArgumentException("resolution must be positive");
+		}
+		this.resolution = resolution;
+		ticks = new long[16];
+		times = new long[16];
+		tempos = new int[16];
+		clear();
+	}
+
+	/**
+	 * Precompute a TempoMap from the Tempo events in the first EventSource of
+	 * a MidiSource. The MidiSource is returned to zero before and after scanning
+	 * so this must not be called while the MidiSource is being played, and the
+	 * first EventSource must terminate.
+	 * @param source the MidiSource to scan
+	 * @return the TempoMap
+	 */
+	public static TempoMap scan(MidiSource source) {
+		TempoMap map = new TempoMap(source.getResolution());
+		source.returnToZero();
+		List<MidiSource.EventSource> eventSources = source.getEventSources();
+		if ( !eventSources.isEmpty() ) {
+			MidiSource.EventSource src = eventSources.get(0);
+			MidiEvent evt;
+			MidiMessage msg;
+			while ( (evt = src.next()) != null ) {
+				msg = evt.getMessage();
+				if ( isMeta(msg) && getType(msg) == TEMPO ) {
+					map.addTempo(evt.getTick(), getMicrosPerQuarter(msg));
+				}
+			}
+		}
+		source.returnToZero();
+		return map;
+	}
+
+	/**
+	 * @return the resolution in ticks per quarter note
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * @return the number of linear segments
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all tempo changes, leaving the default tempo.
+	 */
+	public synchronized void clear() {
+		ticks[0] = 0L;
+		times[0] = 0L;
+		tempos[0] = 500000;
+		size = 1;
+	}
+
+	/**
+	 * Add a tempo change.
+	 * Adding a tempo change that is already known has no effect, so tempo
+	 * changes may be added each time they are played. Adding a tempo change
+	 * before the last known segment discards all subsequent segments because
+	 * their times are no longer valid.
+	 * @param tick the tick of the tempo change
+	 * @param bpm the new tempo in beats per minute
+	 */
+	public void add(long tick, float bpm) {
+		if ( bpm <= 0 ) {
+			throw new IllegalArgumentException("bpm must be positive");
+		}
+		addTempo(tick, Math.round(MICROS_PER_MINUTE / bpm));
+	}
+
+	/**
+	 * Add a tempo change, as for add(), exactly as encoded in a Tempo event.
+	 * @param tick the tick of the tempo change
+	 * @param microsPerQuarter the new tempo in microseconds per quarter note
+	 */
+	public synchronized void addTempo(long tick, int microsPerQuarter) {
+		if ( tick < 0 ) {
+			throw new IllegalArgumentException("tick can't be negative");
+		}
+		if ( microsPerQuarter <= 0 ) {
+			throw new IllegalArgumentException("tempo must be positive");
+		}
+		int i = indexOf(ticks, tick);
+		if ( ticks[i] == tick ) {
+			if ( tempos[i] == microsPerQuarter ) return; // already known
+			size = i;
+		} else {
+			size = i + 1;
+		}
+		if ( size == 0 ) { // replacing the default tempo
+			tempos[0] = microsPerQuarter;
+			size = 1;
+			return;
+		}
+		if ( size == ticks.length ) {
+			grow();
+		}
+		times[size] = tickToTimeImpl(size - 1, tick);
+		ticks[size] = tick;
+		tempos[size] = microsPerQuarter;
+		size += 1;
+	}
+
+	/**
+	 * @param tick the tick
+	 * @return the tempo in force at tick in beats per minute
+	 */
+	public float getBpm(long tick) {
+		return MICROS_PER_MINUTE / getMicrosPerQuarter(tick);
+	}
+
+	/**
+	 * @param tick the tick
+	 * @return the tempo in force at tick in microseconds per quarter note
+	 */
+	public synchronized int getMicrosPerQuarter(long tick) {
+		return tempos[indexOf(ticks, tick)];
+	}
+
+	/**
+	 * @param tick the tick
+	 * @return the time of tick in nanoseconds, rounded down
+	 */
+	public long tickToNanos(long tick) {
+		return Math.floorDiv(tickToTime(tick), resolution);
+	}
+
+	/**
+	 * @param tick the tick
+	 * @return the exact time of tick in nanoseconds multiplied by the resolution
+	 */
+	public synchronized long tickToTime(long tick) {
+		return tickToTimeImpl(indexOf(ticks, tick), tick);
+	}
+
+	/**
+	 * @param ns the time in nanoseconds
+	 * @return the last tick at or before ns
+	 */
+	public synchronized long nanosToTick(long ns) {
+		long time = ns * resolution;
+		int i = indexOf(times, time);
+		return toTick(ticks[i], times[i], getTickTime(tempos[i]), time);
+	}
+
+	/**
+	 * @param tick the tick
+	 * @return the time of tick in milliseconds
+	 */
+	public long tickToMillis(long tick) {
+		return tickToNanos(tick) / 1000000L;
+	}
+
+	/**
+	 * @param millis the time in milliseconds
+	 * @return the last tick at or before millis
+	 */
+	public long millisToTick(long millis) {
+		return nanosToTick(millis * 1000000L);
+	}
+
+	private long tickToTimeImpl(int i, long tick) {
+		return toTime(ticks[i], times[i], getTickTime(tempos[i]), tick);
+	}
+
+	// return the index of the last segment starting at or before key, or 0
+	private int indexOf(long[] a, long key) {
+		int lo = 0;
+		int hi = size - 1;
+		int mid;
+		while ( lo < hi ) {
+			mid = (lo + hi + 1) >>> 1;
+			if ( a[mid] <= key ) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private void grow() {
+		int capacity = ticks.length * 2;
+		long[] t = new long[capacity];
+		long[] n = new long[capacity];
+		int[] b = new int[capacity];
+		System.arraycopy(ticks, 0, t, 0, size);
+		System.arraycopy(times, 0, n, 0, size);
+		System.arraycopy(tempos, 0, b, 0, size);
+		ticks = t;
+		times = n;
+		tempos = b;
+	}
+
+	/**
+	 * @param microsPerQuarter the tempo in microseconds per quarter note
+	 * @return the duration of a tick in nanoseconds multiplied by the resolution
+	 */
+	static long getTickTime(int microsPerQuarter) {
+		return microsPerQuarter * 1000L;
+	}
+
+	/**
+	 * Convert a tick to time within a linear segment, exactly.
+	 * @param startTick the tick at the start of the segment
+	 * @param startTime the time at the start of the segment
+	 * @param tickTime the duration of a tick, see getTickTime()
+	 * @param tick the tick
+	 * @return the time of tick, in nanoseconds multiplied by the resolution
+	 */
+	static long toTime(long startTick, long startTime, long tickTime, long tick) {
+		return startTime + (tick - startTick) * tickTime;
+	}
+
+	/**
+	 * Convert a time to a tick within a linear segment.
+	 * @param startTick the tick at the start of the segment
+	 * @param startTime the time at the start of the segment
+	 * @param tickTime the duration of a tick, see getTickTime()
+	 * @param time the time, in nanoseconds multiplied by the resolution
+	 * @return the last tick at or before time
+	 */
+	static long toTick(long startTick, long startTime, long tickTime, long time) {
+		return startTick + Math.floorDiv(time - startTime, tickTime);
+	}
+
+	/**
+	 * @param msg a Tempo meta message
+	 * @return the tempo in microseconds per quarter note
+	 */
+	static int getMicrosPerQuarter(MidiMessage msg) {
+		byte[] data = msg.getMessage(); // FF 51 03 tt tt tt
+		int n = data.length;
+		return ((data[n-3] & 0xFF) << 16) | ((data[n-2] & 0xFF) << 8) | (data[n-1] & 0xFF);
+	}
+}
@@ -0,0 +1,22 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+/**
+ * An empty implementation of TransportListener for convenient subclassing.
+ * @author st
+ *
+ */
+public abstract class TransportAdapter implements TransportListener
+{
+	public void runningChanged(MidiPlayer.Snapshot snapshot) {}
+
+	public void tempoChanged(MidiPlayer.Snapshot snapshot) {}
+
+	public void repositioned(MidiPlayer.Snapshot snapshot) {}
+
+	public void positionChanged(MidiPlayer.Snapshot snapshot) {}
+}
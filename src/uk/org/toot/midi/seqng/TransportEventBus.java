@@ -0,0 +1,167 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TransportEventBus delivers transport events from MidiPlayers to their
+ * TransportListeners and Observers on its own dispatcher thread.
+ *
+ * The real-time thread of a MidiPlayer merely sets bits in the MidiPlayer's
+ * pending events and, only if none were pending, enqueues the MidiPlayer on
+ * a lock-free queue and unparks the dispatcher thread. So the real-time thread
+ * never blocks and never runs user code, and events which occur before the
+ * dispatcher thread catches up are coalesced.
+ *
+ * While a MidiPlayer is running the dispatcher thread also notifies position
+ * changes periodically, by polling rather than involving the real-time thread.
+ *
+ * A single TransportEventBus may serve many MidiPlayers, by default they all
+ * share the one returned by getDefault().
+ *
+ * A RuntimeException thrown by a TransportListener or Observer does not stop
+ * delivery to others. The last one is available from getFailure() and is also
+ * passed to the exception handler, if set.
+ * @author st
+ *
+ */
+public class TransportEventBus implements Runnable
+{
+	static final int RUNNING = 1;
+	static final int TEMPO = 2;
+	static final int REPOSITION = 4;
+
+	private static TransportEventBus defaultBus;
+
+	private ConcurrentLinkedQueue<MidiPlayer> queue =
+		new ConcurrentLinkedQueue<MidiPlayer>();
+
+	// only accessed by the dispatcher thread
+	private List<MidiPlayer> running = new java.util.ArrayList<MidiPlayer>();
+
+	private volatile long positionNanos = 50000000L;
+	private volatile RuntimeException failure;	// the last, null if none
+	private volatile Thread.UncaughtExceptionHandler handler;
+
+	private Thread thread;
+
+	public TransportEventBus(String name) {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the TransportEventBus shared by default
+	 */
+	public static synchronized TransportEventBus getDefault() {
+		if ( defaultBus == null ) {
+			defaultBus = new TransportEventBus("Toot TransportEventBus");
+		}
+		return defaultBus;
+	}
+
+	/**
+	 * Set the interval between position change notifications.
+	 * @param millis the interval in milliseconds, default 50
+	 */
+	public void setPositionInterval(long millis) {
+		if ( millis <= 0 ) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		positionNanos = millis * 1000000L;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return the last RuntimeException thrown by a TransportListener or
+	 * Observer, or null if none
+	 */
+	public RuntimeException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Set a handler to be called on the dispatcher thread for each
+	 * RuntimeException thrown by a TransportListener or Observer.
+	 * @param handler the handler, null for none
+	 */
+	public void setExceptionHandler(Thread.UncaughtExceptionHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return the exception handler, null if none
+	 */
+	public Thread.UncaughtExceptionHandler getExceptionHandler() {
+		return handler;
+	}
+
+	/**
+	 * Called when a MidiPlayer has new pending events.
+	 * Real-time safe, does not block.
+	 * @param player the MidiPlayer
+	 */
+	void post(MidiPlayer player) {
+		queue.offer(player);
+		LockSupport.unpark(thread);
+	}
+
+	public void run() {
+		MidiPlayer player;
+		int events;
+		long now;
+		long nextPosition = System.nanoTime();
+		while ( true ) {
+			while ( (player = queue.poll()) != null ) {
+				events = player.takeTransportEvents();
+				if ( events == 0 ) continue;
+				if ( (events & RUNNING) != 0 ) {
+					running.remove(player);
+					if ( player.isRunning() ) {
+						running.add(player);
+					}
+				}
+				try {
+					player.dispatchTransportEvents(events);
+				} catch ( RuntimeException re ) {
+					failed(re);
+				}
+			}
+			now = System.nanoTime();
+			if ( running.isEmpty() ) {
+				LockSupport.park(this);
+				nextPosition = System.nanoTime();
+				continue;
+			}
+			if ( now - nextPosition >= 0 ) {
+				for ( int i = 0; i < running.size(); i++ ) {
+					try {
+						running.get(i).dispatchTransportEvents(0);
+					} catch ( RuntimeException re ) {
+						failed(re);
+					}
+				}
+				nextPosition = now + positionNanos;
+			}
+			LockSupport.parkNanos(this, nextPosition - now);
+		}
+	}
+
+	private void failed(RuntimeException re) {
+		failure = re;
+		Thread.UncaughtExceptionHandler h = handler;
+		if ( h == null ) return;
+		try {
+			h.uncaughtException(thread, re);
+		} catch ( RuntimeException ignored ) {
+			// the handler must not stop the dispatcher thread
+		}
+	}
+}
@@ -0,0 +1,43 @@
+// Copyright (C) 2009 Steve Taylor.
+// Distributed under the Toot Software License, Version 1.0. (See
+// accompanying file LICENSE_1_0.txt or copy at
+// http://www.toot.org.uk/LICENSE_1_0.txt)
+
+package uk.org.toot.midi.seqng;
+
+/**
+ * A TransportListener is notified of changes to the transport state of a
+ * MidiPlayer. Notifications are made asynchronously on the dispatcher thread
+ * of a TransportEventBus, never on the real-time thread, so listeners may take
+ * as long as they like without affecting timing, but they delay other listeners.
+ * Notifications are coalesced, so each provides the latest Snapshot rather
+ * than a Snapshot for every change.
+ * @author st
+ *
+ */
+public interface TransportListener
+{
+	/**
+	 * Called when the player starts or stops.
+	 * @param snapshot the transport state
+	 */
+	public void runningChanged(MidiPlayer.Snapshot snapshot);
+
+	/**
+	 * Called when the tempo changes.
+	 * @param snapshot the transport state
+	 */
+	public void tempoChanged(MidiPlayer.Snapshot snapshot);
+
+	/**
+	 * Called when the player is repositioned.
+	 * @param snapshot the transport state
+	 */
+	public void repositioned(MidiPlayer.Snapshot snapshot);
+
+	/**
+	 * Called periodically while the player is running.
+	 * @param snapshot the transport state
+	 */
+	public void positionChanged(MidiPlayer.Snapshot snapshot);
+}